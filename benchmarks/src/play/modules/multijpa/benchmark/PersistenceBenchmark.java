@@ -0,0 +1,103 @@
+package play.modules.multijpa.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import play.db.Model;
+import play.db.jpa.GenericModel;
+import play.modules.multijpa.DatastoreRegistry;
+import play.modules.multijpa.ModelLoader;
+import play.modules.multijpa.MultiJPAPlugin;
+
+import java.lang.annotation.Annotation;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request cost of the persistence path. Every benchmark but registryCurrent ends its invocation
+ * like MultiJPAPlugin does, so that the measured time includes beginning and ending the transactions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+
+    private static final Object[] TITLE = new Object[]{"title1"};
+
+    private static final MultiJPAPlugin plugin = new MultiJPAPlugin();
+
+    @Benchmark
+    public DatastoreRegistry registryCurrent() {
+        return DatastoreRegistry.current();
+    }
+
+    @Benchmark
+    public void transaction(PlayApplication app) {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        registry.get("default").beginTransaction(false);
+        if (app.isMulti()) {
+            registry.get("mysql").beginTransaction(false);
+        }
+        PlayApplication.endInvocation();
+    }
+
+    @Benchmark
+    public void findById(PlayApplication app, Blackhole blackhole) throws Exception {
+        blackhole.consume(app.articleFindById.invoke(null, app.articleId));
+        if (app.isMulti()) {
+            blackhole.consume(app.commentFindById.invoke(null, app.commentId));
+        }
+        PlayApplication.endInvocation();
+    }
+
+    @Benchmark
+    public void find(PlayApplication app, Blackhole blackhole) throws Exception {
+        blackhole.consume(((GenericModel.JPAQuery) app.articleFind.invoke(null, "byTitle", TITLE)).first());
+        if (app.isMulti()) {
+            blackhole.consume(((GenericModel.JPAQuery) app.commentFind.invoke(null, "byArticleId", new Object[]{app.articleId})).fetch());
+        }
+        PlayApplication.endInvocation();
+    }
+
+    @Benchmark
+    public void count(PlayApplication app, Blackhole blackhole) throws Exception {
+        blackhole.consume(app.articleCount.invoke(null));
+        if (app.isMulti()) {
+            blackhole.consume(app.commentCount.invoke(null));
+        }
+        PlayApplication.endInvocation();
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public void fetch(PlayApplication app, Blackhole blackhole) {
+        blackhole.consume(new ModelLoader((Class<? extends Model>) app.articleClass).fetch(0, 20, null, null, null, null, null));
+        if (app.isMulti()) {
+            blackhole.consume(new ModelLoader((Class<? extends Model>) app.commentClass).fetch(0, 20, null, null, null, null, null));
+        }
+        PlayApplication.endInvocation();
+    }
+
+    @Benchmark
+    public void bind(PlayApplication app, Blackhole blackhole) {
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        params.put("article.id", new String[]{app.articleId.toString()});
+        params.put("article.title", new String[]{"title"});
+        blackhole.consume(plugin.bind("article", app.articleClass, app.articleClass, new Annotation[0], params));
+        if (app.isMulti()) {
+            params.put("comment.id", new String[]{app.commentId.toString()});
+            params.put("comment.title", new String[]{"title"});
+            blackhole.consume(plugin.bind("comment", app.commentClass, app.commentClass, new Annotation[0], params));
+        }
+        // Bound entities are not saved, end like a failed validation would
+        DatastoreRegistry.current().endTransactions(true);
+    }
+}
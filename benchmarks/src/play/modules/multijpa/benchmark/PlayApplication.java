@@ -0,0 +1,126 @@
+package play.modules.multijpa.benchmark;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import play.Play;
+import play.modules.multijpa.DatastoreRegistry;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * The blog sample, started in test mode (db=mem, jpa.ddl=create-drop) and filled with articles and comments.<br />
+ * <br />
+ * <code>single</code> benchmarks touch the default database only, <code>multi</code> benchmarks also touch
+ * the mysql database of Comment. With db=mem both databases live in the same HSQLDB instance,
+ * but each one has its own pool, EntityManagerFactory and Datastore.
+ */
+@State(Scope.Benchmark)
+public class PlayApplication {
+
+    static final int ARTICLES = 100;
+    static final int COMMENTS_PER_ARTICLE = 5;
+
+    @Param({"single", "multi"})
+    public String databases;
+
+    Class<?> articleClass;
+    Class<?> commentClass;
+
+    Method articleFindById;
+    Method articleFind;
+    Method articleCount;
+    Method commentFindById;
+    Method commentFind;
+    Method commentCount;
+
+    Object articleId;
+    Object commentId;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        File root = new File(System.getProperty("application.path", "samples-and-tests/blog"));
+        Play.init(root, "test");
+        Play.start();
+
+        articleClass = Play.classloader.loadClass("models.Article");
+        commentClass = Play.classloader.loadClass("models.Comment");
+        articleFindById = articleClass.getMethod("findById", Object.class);
+        articleFind = articleClass.getMethod("find", String.class, Object[].class);
+        articleCount = articleClass.getMethod("count");
+        commentFindById = commentClass.getMethod("findById", Object.class);
+        commentFind = commentClass.getMethod("find", String.class, Object[].class);
+        commentCount = commentClass.getMethod("count");
+
+        fill();
+    }
+
+    private void fill() throws Exception {
+        for (int i = 0; i < ARTICLES; i++) {
+            Object article = articleClass.newInstance();
+            set(article, "title", "title" + i);
+            set(article, "body", "body" + i);
+            DatastoreRegistry.getCurrentEntityManager(articleClass).persist(article);
+            DatastoreRegistry.getCurrentEntityManager(articleClass).flush();
+            Object id = get(article, "id");
+            if (articleId == null) {
+                articleId = id;
+            }
+            for (int j = 0; j < COMMENTS_PER_ARTICLE; j++) {
+                Object comment = commentClass.newInstance();
+                set(comment, "articleId", id);
+                set(comment, "title", "comment" + j);
+                set(comment, "body", "body" + j);
+                DatastoreRegistry.getCurrentEntityManager(commentClass).persist(comment);
+                DatastoreRegistry.getCurrentEntityManager(commentClass).flush();
+                if (commentId == null) {
+                    commentId = get(comment, "id");
+                }
+            }
+        }
+        endInvocation();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        Play.stop();
+    }
+
+    boolean isMulti() {
+        return "multi".equals(databases);
+    }
+
+    /**
+     * What MultiJPAPlugin does after each invocation.
+     */
+    static void endInvocation() {
+        DatastoreRegistry.current().endTransactions(false);
+    }
+
+    private static Field field(Object o, String name) throws NoSuchFieldException {
+        Class<?> c = o.getClass();
+        while (c != null) {
+            try {
+                Field field = c.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                c = c.getSuperclass();
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+
+    private static void set(Object o, String name, Object value) throws Exception {
+        field(o, name).set(o, value);
+    }
+
+    private static Object get(Object o, String name) throws Exception {
+        return field(o, name).get(o);
+    }
+}
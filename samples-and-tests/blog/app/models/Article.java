@@ -10,6 +10,11 @@ public class Article extends Model {
     String title;
     String body;
 
+    public Article(String title, String body) {
+        this.title = title;
+        this.body = body;
+    }
+
     public List<Comment> comments() {
         return Comment.find("byArticleId", id).fetch();
     }
@@ -0,0 +1,21 @@
+package models;
+
+import play.db.jpa.GenericModel;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Version;
+
+@Entity
+public class Tag extends GenericModel {
+    @Id
+    public String name;
+    public String label;
+    @Version
+    public int version;
+
+    public Tag(String name, String label) {
+        this.name = name;
+        this.label = label;
+    }
+}
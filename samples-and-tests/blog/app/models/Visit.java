@@ -0,0 +1,15 @@
+package models;
+
+import play.db.jpa.Model;
+import play.modules.multijpa.Database;
+import play.modules.multijpa.Sharded;
+
+import javax.persistence.Entity;
+
+@Entity
+@Database("logs")
+@Sharded(key = "articleId")
+public class Visit extends Model {
+    public Long articleId;
+    public String path;
+}
@@ -1,5 +1,8 @@
 import org.junit.*;
 import java.util.*;
+import javax.persistence.EntityManager;
+import play.db.Model;
+import play.modules.multijpa.*;
 import play.test.*;
 import models.*;
 
@@ -12,4 +15,30 @@ public class BasicTest extends UnitTest {
         List<Comment> comments = article.comments();
         assertEquals(2, comments.size());
     }
+
+    @Test
+    public void testFetchAndCountEntitiesOfTheSameDatabase() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        EntityManager em = registry.get("default").getEntityManager();
+        em.createQuery("delete from Tag").executeUpdate();
+        em.persist(new Article("tagged", "body"));
+        em.persist(new Tag("java", "Java"));
+        em.persist(new Tag("play", "Play"));
+        registry.endTransactions(false);
+
+        ModelLoader articles = new ModelLoader(Article.class);
+        ModelLoader tags = new ModelLoader(Tag.class);
+        assertEquals(Article.count(), articles.count(null, null, null).longValue());
+        assertEquals(2L, tags.count(null, null, null).longValue());
+
+        List<Model> fetchedTags = tags.fetch(0, 10, null, null, null, null, null);
+        assertEquals(2, fetchedTags.size());
+        assertTrue(fetchedTags.get(0) instanceof Tag);
+        assertEquals("java", ((Tag) fetchedTags.get(0)).name);
+        assertEquals("play", ((Tag) fetchedTags.get(1)).name);
+        for (Model article : articles.fetch(0, 10, null, null, null, null, null)) {
+            assertTrue(article instanceof Article);
+        }
+        registry.endTransactions(false);
+    }
 }
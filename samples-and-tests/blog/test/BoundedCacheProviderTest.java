@@ -0,0 +1,48 @@
+import org.junit.*;
+import java.util.*;
+import org.hibernate.cache.Cache;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import play.modules.multijpa.*;
+import play.test.*;
+
+public class BoundedCacheProviderTest extends UnitTest {
+
+    private BoundedCacheProvider provider = new BoundedCacheProvider();
+
+    @After
+    public void tearDown() {
+        provider.stop();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() {
+        Properties properties = new Properties();
+        properties.setProperty("hibernate.cache.bounded.max_elements", "2");
+        Cache cache = provider.buildCache("test.bounded", properties);
+
+        cache.put("a", "A");
+        cache.put("b", "B");
+        assertEquals("A", cache.get("a"));
+        cache.put("c", "C");
+
+        assertEquals(2L, cache.getElementCountInMemory());
+        assertEquals("A", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("C", cache.get("c"));
+    }
+
+    @Test
+    public void testRemovedEntryIsNotRead() {
+        Cache cache = provider.buildCache("test.removed", new Properties());
+        cache.put("a", "A");
+        cache.remove("a");
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testSecondLevelCacheIsOffByDefault() {
+        HibernateEntityManagerFactory factory = (HibernateEntityManagerFactory) EntityManagerFactoryRegistry.get("mysql");
+        assertFalse(((SessionFactoryImplementor) factory.getSessionFactory()).getSettings().isSecondLevelCacheEnabled());
+    }
+}
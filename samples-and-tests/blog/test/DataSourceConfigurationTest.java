@@ -0,0 +1,41 @@
+import org.junit.*;
+import java.util.*;
+import play.modules.multijpa.*;
+import play.test.*;
+
+public class DataSourceConfigurationTest extends UnitTest {
+
+    @Test
+    public void testDataSourceNames() {
+        Properties properties = new Properties();
+        properties.setProperty("db", "mem");
+        properties.setProperty("db.user", "sa");
+        properties.setProperty("db.pool.timeout", "1000");
+        properties.setProperty("db.mysql", "mysql:user:pass@testdb");
+        properties.setProperty("db.stats.url", "jdbc:hsqldb:mem:stats");
+        properties.setProperty("db.archive.driver", "org.hsqldb.jdbcDriver");
+        properties.setProperty("jpa.ddl", "create-drop");
+
+        assertEquals(new TreeSet<String>(Arrays.asList("archive", "default", "mysql", "stats")),
+                DataSourceConfiguration.getDataSourceNames(properties));
+    }
+
+    @Test
+    public void testDatabaseNamesOfTheApplication() {
+        Set<String> names = DatastoreWarmup.findDatabaseNames();
+        assertTrue(names.contains("default"));
+        assertTrue(names.contains("mysql"));
+    }
+
+    @Test
+    public void testOnlyDatabaseSpecsDeclareNames() {
+        Properties properties = new Properties();
+        properties.setProperty("db", "mem");
+        properties.setProperty("db.timeout", "10");
+        properties.setProperty("db.replicas", "jdbc:hsqldb:mem:replica");
+        properties.setProperty("db.x", "mem");
+
+        assertEquals(new TreeSet<String>(Arrays.asList("default", "x")),
+                DataSourceConfiguration.getDataSourceNames(properties));
+    }
+}
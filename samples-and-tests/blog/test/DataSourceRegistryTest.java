@@ -0,0 +1,32 @@
+import org.junit.*;
+import javax.sql.DataSource;
+import play.modules.multijpa.*;
+import play.test.*;
+
+public class DataSourceRegistryTest extends UnitTest {
+
+    @Test
+    public void testPoolIsSharedByThreads() throws Exception {
+        final DataSource[] other = new DataSource[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                other[0] = DataSourceRegistry.get("mysql");
+            }
+        };
+        thread.start();
+        thread.join();
+
+        assertNotNull(other[0]);
+        assertSame(other[0], DataSourceRegistry.get("mysql"));
+    }
+
+    @Test
+    public void testStatisticsOfAPool() {
+        DataSourceRegistry.get("default");
+        DataSourceRegistry.PoolStatistics statistics = DataSourceRegistry.getStatistics("default");
+        assertNotNull(statistics);
+        assertTrue(statistics.busyConnections >= 0);
+        assertTrue(DataSourceRegistry.getAllStatistics().containsKey("default"));
+    }
+}
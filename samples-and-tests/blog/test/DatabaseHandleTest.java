@@ -0,0 +1,28 @@
+import org.junit.*;
+import play.modules.multijpa.*;
+import play.test.*;
+import models.*;
+
+public class DatabaseHandleTest extends UnitTest {
+
+    @Test
+    public void testHandleOfADatabaseIsShared() {
+        assertSame(JPQL.getInstance("mysql"), JPQL.getInstance("mysql"));
+        assertNotSame(JPQL.getInstance("mysql"), JPQL.getInstance("default"));
+        assertSame(JPQL.getInstance("default"), JPQL.getInstance());
+    }
+
+    @Test
+    public void testFindersUseTheDatabaseOfTheEntity() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        Comment comment = new Comment();
+        comment.articleId = -22L;
+        registry.get("mysql").getEntityManager().persist(comment);
+        try {
+            assertEquals(1L, Comment.count("articleId = ?", -22L));
+            assertSame(comment, Comment.findById(comment.id));
+        } finally {
+            registry.endTransactions(true);
+        }
+    }
+}
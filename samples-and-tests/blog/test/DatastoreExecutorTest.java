@@ -0,0 +1,33 @@
+import org.junit.*;
+import javax.persistence.EntityManager;
+import play.modules.multijpa.*;
+import play.test.*;
+
+public class DatastoreExecutorTest extends UnitTest {
+
+    @Test
+    public void testWorkRunsOnAThreadOfItsDatabase() throws Exception {
+        String thread = DatastoreExecutor.submit("mysql", new DatastoreExecutor.Work<String>() {
+            public String run(EntityManager em) {
+                assertNotNull(em);
+                return Thread.currentThread().getName();
+            }
+        }).get();
+        assertTrue(thread, thread.startsWith("multijpa-mysql-"));
+    }
+
+    @Test
+    public void testShardKeyIsBoundToTheWorker() throws Exception {
+        Shards.bind(7L);
+        try {
+            Object key = DatastoreExecutor.submit("mysql", new DatastoreExecutor.Work<Object>() {
+                public Object run(EntityManager em) {
+                    return Shards.current();
+                }
+            }).get();
+            assertEquals(Long.valueOf(7L), key);
+        } finally {
+            Shards.unbind();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+import org.junit.*;
+import play.modules.multijpa.*;
+import play.test.*;
+
+public class DatastoreMetricsTest extends UnitTest {
+
+    @Test
+    public void testTransactionsAndQueriesAreCounted() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        registry.endTransactions(false);
+        DatastoreMetrics metrics = DatastoreMetrics.get("mysql");
+        long queries = metrics.getQueries();
+        long transactions = metrics.getCommits() + metrics.getRollbacks();
+        long opened = metrics.getEntityManagersOpened();
+
+        registry.get("mysql").getEntityManager().createQuery("select count(c) from Comment c").getSingleResult();
+        registry.endTransactions(false);
+
+        assertEquals(queries + 1, metrics.getQueries());
+        assertEquals(transactions + 1, metrics.getCommits() + metrics.getRollbacks());
+        assertEquals(opened + 1, metrics.getEntityManagersOpened());
+    }
+
+    @Test
+    public void testMetricsOfADatabaseAreShared() {
+        assertSame(DatastoreMetrics.get("mysql"), DatastoreMetrics.get("mysql"));
+        assertNotSame(DatastoreMetrics.get("mysql"), DatastoreMetrics.get("default"));
+    }
+}
@@ -0,0 +1,70 @@
+import org.junit.*;
+import javax.persistence.EntityManager;
+import play.modules.multijpa.*;
+import play.test.*;
+import models.*;
+
+public class DatastoreRegistryTest extends UnitTest {
+
+    @Test
+    public void testRegistryIsKeptByItsThread() throws Exception {
+        final DatastoreRegistry registry = DatastoreRegistry.current();
+        assertSame(registry, DatastoreRegistry.current());
+
+        final DatastoreRegistry[] other = new DatastoreRegistry[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                other[0] = DatastoreRegistry.current();
+                DatastoreRegistry.unbind();
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNotNull(other[0]);
+        assertNotSame(registry, other[0]);
+    }
+
+    @Test
+    public void testUnboundRegistryContinuesOnAnotherThread() throws Exception {
+        final DatastoreRegistry registry = DatastoreRegistry.current();
+        assertSame(registry, DatastoreRegistry.unbind());
+        try {
+            final DatastoreRegistry[] bound = new DatastoreRegistry[1];
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    DatastoreRegistry.bind(registry);
+                    bound[0] = DatastoreRegistry.current();
+                    DatastoreRegistry.unbind();
+                }
+            };
+            thread.start();
+            thread.join();
+            assertSame(registry, bound[0]);
+        } finally {
+            DatastoreRegistry.bind(registry);
+        }
+        assertSame(registry, DatastoreRegistry.current());
+    }
+
+    @Test
+    public void testWorkOfTheExecutorIsCommitted() throws Exception {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        registry.get("mysql").getEntityManager().createQuery("delete from Comment where articleId = -21").executeUpdate();
+        registry.endTransactions(false);
+
+        DatastoreExecutor.submit("mysql", new DatastoreExecutor.Work<Long>() {
+            public Long run(EntityManager em) {
+                Comment comment = new Comment();
+                comment.articleId = -21L;
+                em.persist(comment);
+                return comment.id;
+            }
+        }).get();
+
+        assertEquals(1L, registry.get("mysql").getEntityManager()
+                .createQuery("select count(c) from Comment c where c.articleId = -21").getSingleResult());
+        registry.endTransactions(false);
+    }
+}
@@ -0,0 +1,50 @@
+import org.junit.*;
+import java.util.Collections;
+import play.modules.multijpa.*;
+import play.test.*;
+import models.*;
+
+public class DirtyTrackingTest extends UnitTest {
+
+    private DatastoreRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = DatastoreRegistry.current();
+        registry.endTransactions(false);
+        registry.get("default").getEntityManager().createQuery("delete from Tag where name = 'dirty-25'").executeUpdate();
+        registry.get("default").getEntityManager().persist(new Tag("dirty-25", "Before"));
+        registry.endTransactions(false);
+    }
+
+    private Tag findTag() {
+        Tag tag = registry.get("default").getEntityManager().find(Tag.class, "dirty-25");
+        registry.endTransactions(false);
+        return tag;
+    }
+
+    @Test
+    public void testWrittenFieldIsUpdated() {
+        Tag tag = registry.get("default").getEntityManager().find(Tag.class, "dirty-25");
+        assertTrue(tag instanceof DirtyTracked);
+        tag.label = "After";
+        registry.get("default").saveAll(Collections.singletonList(tag));
+        registry.endTransactions(false);
+
+        Tag saved = findTag();
+        assertEquals("After", saved.label);
+        assertEquals(1, saved.version);
+    }
+
+    @Test
+    public void testRewrittenValueIsNotUpdated() {
+        Tag tag = registry.get("default").getEntityManager().find(Tag.class, "dirty-25");
+        tag.label = "Before";
+        registry.get("default").saveAll(Collections.singletonList(tag));
+        registry.endTransactions(false);
+
+        Tag saved = findTag();
+        assertEquals("Before", saved.label);
+        assertEquals(0, saved.version);
+    }
+}
@@ -0,0 +1,24 @@
+import org.junit.*;
+import play.modules.multijpa.*;
+import play.test.*;
+import models.*;
+
+public class EntityIndexTest extends UnitTest {
+
+    @Test
+    public void testEntitiesAreIndexedByDatabase() {
+        EntityIndex index = EntityIndex.current();
+        assertTrue(index.getEntityClasses("default").contains(Article.class));
+        assertFalse(index.getEntityClasses("default").contains(Comment.class));
+        assertTrue(index.getEntityClasses("mysql").contains(Comment.class));
+        assertTrue(index.getEntityClasses("unknown").isEmpty());
+    }
+
+    @Test
+    public void testDatabaseNames() {
+        EntityIndex index = EntityIndex.current();
+        assertTrue(index.getDatabaseNames().contains("default"));
+        assertTrue(index.getDatabaseNames().contains("mysql"));
+        assertSame(index, EntityIndex.current());
+    }
+}
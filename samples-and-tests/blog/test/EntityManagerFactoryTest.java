@@ -0,0 +1,35 @@
+import org.junit.*;
+import javax.persistence.EntityManagerFactory;
+import play.modules.multijpa.*;
+import play.test.*;
+
+public class EntityManagerFactoryTest extends UnitTest {
+
+    @Test
+    public void testFactoryIsSharedByThreads() throws Exception {
+        final EntityManagerFactory[] other = new EntityManagerFactory[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                other[0] = EntityManagerFactoryRegistry.get("default");
+            }
+        };
+        thread.start();
+        thread.join();
+
+        assertNotNull(other[0]);
+        assertSame(other[0], EntityManagerFactoryRegistry.get("default"));
+    }
+
+    @Test
+    public void testEachDatabaseHasItsFactory() {
+        assertNotSame(EntityManagerFactoryRegistry.get("default"), EntityManagerFactoryRegistry.get("mysql"));
+    }
+
+    @Test
+    public void testDatastoreIsKeptByItsRegistry() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        assertSame(registry.get("mysql"), registry.get("mysql"));
+        registry.endTransactions(false);
+    }
+}
@@ -0,0 +1,49 @@
+import org.junit.*;
+import play.modules.multijpa.*;
+import play.test.*;
+import models.*;
+
+public class EntityStreamTest extends UnitTest {
+
+    @Before
+    public void setUp() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        registry.get("mysql").getEntityManager().createQuery("delete from Comment where articleId = -15").executeUpdate();
+        for (int i = 0; i < 250; i++) {
+            Comment comment = new Comment();
+            comment.articleId = -15L;
+            comment.title = "streamed " + i;
+            registry.get("mysql").getEntityManager().persist(comment);
+        }
+        registry.endTransactions(false);
+    }
+
+    @Test
+    public void testAllRowsAreStreamed() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        EntityStream<Comment> stream = registry.get("mysql").stream("from Comment where articleId = ?1", -15L);
+        int count = 0;
+        for (Comment comment : stream) {
+            assertEquals(Long.valueOf(-15L), comment.articleId);
+            count++;
+        }
+        assertEquals(250, count);
+        assertEquals(250L, stream.getCount());
+        // Closed at the end of the results
+        assertTrue(stream.isClosed());
+        registry.endTransactions(false);
+    }
+
+    @Test
+    public void testStreamIsClosedWithTheTransaction() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        EntityStream<Comment> stream = registry.get("mysql").stream("from Comment where articleId = ?1", -15L);
+        assertTrue(stream.hasNext());
+        stream.next();
+        assertFalse(stream.isClosed());
+
+        registry.endTransactions(false);
+        assertTrue(stream.isClosed());
+        assertFalse(stream.hasNext());
+    }
+}
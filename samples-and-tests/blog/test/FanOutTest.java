@@ -0,0 +1,82 @@
+import org.junit.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.persistence.EntityManager;
+import play.exceptions.JPAException;
+import play.modules.multijpa.*;
+import play.test.*;
+
+public class FanOutTest extends UnitTest {
+
+    private static DatastoreExecutor.Work<String> databaseOfTheThread() {
+        return new DatastoreExecutor.Work<String>() {
+            public String run(EntityManager em) {
+                return Thread.currentThread().getName();
+            }
+        };
+    }
+
+    @Test
+    public void testWorksOfSeveralDatabasesAreJoined() throws Exception {
+        FanOut fanOut = new FanOut();
+        Future<String> mysql = fanOut.add("mysql", databaseOfTheThread());
+        Future<String> other = fanOut.add("default", databaseOfTheThread());
+        fanOut.join();
+
+        assertTrue(mysql.isDone());
+        assertTrue(other.isDone());
+        assertTrue(mysql.get().startsWith("multijpa-mysql-"));
+        assertTrue(other.get().startsWith("multijpa-default-"));
+    }
+
+    @Test
+    public void testFailedWorkFailsTheJoin() {
+        final IllegalStateException failure = new IllegalStateException("failed");
+        FanOut fanOut = new FanOut();
+        fanOut.add("default", databaseOfTheThread());
+        fanOut.add("mysql", new DatastoreExecutor.Work<String>() {
+            public String run(EntityManager em) {
+                throw failure;
+            }
+        });
+        try {
+            fanOut.join();
+            fail("The failure of a work must fail the join");
+        } catch (JPAException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void testTimeoutDoesNotInterruptTheWorks() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch ended = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        FanOut fanOut = new FanOut(100, TimeUnit.MILLISECONDS);
+        fanOut.add("mysql", new DatastoreExecutor.Work<String>() {
+            public String run(EntityManager em) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                } finally {
+                    ended.countDown();
+                }
+                return null;
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        try {
+            fanOut.join();
+            fail("The work did not end in time");
+        } catch (JPAException e) {
+            // expected
+        } finally {
+            release.countDown();
+        }
+        assertTrue(ended.await(10, TimeUnit.SECONDS));
+        assertFalse(interrupted.get());
+    }
+}
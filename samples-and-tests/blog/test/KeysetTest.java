@@ -0,0 +1,66 @@
+import org.junit.*;
+import java.util.*;
+import play.db.Model;
+import play.modules.multijpa.*;
+import play.test.*;
+import models.*;
+
+public class KeysetTest extends UnitTest {
+
+    private List<Comment> comments = new ArrayList<Comment>();
+
+    @Before
+    public void setUp() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        registry.get("mysql").getEntityManager().createQuery("delete from Comment where articleId = -14").executeUpdate();
+        for (String title : new String[]{"a", "b", "b", "c"}) {
+            Comment comment = new Comment();
+            comment.articleId = -14L;
+            comment.title = title;
+            registry.get("mysql").getEntityManager().persist(comment);
+            comments.add(comment);
+        }
+        registry.endTransactions(false);
+    }
+
+    private static List<Long> idsOf(List<Model> page) {
+        List<Long> ids = new ArrayList<Long>();
+        for (Model model : page) {
+            ids.add(((Comment) model).id);
+        }
+        return ids;
+    }
+
+    @Test
+    public void testPagesFollowTheLastEntity() {
+        ModelLoader loader = new ModelLoader(Comment.class);
+        Map<String, Object> filters = Collections.<String, Object>singletonMap("articleId", -14L);
+
+        List<Model> first = loader.fetchAfter(2, "title", "ASC", null, null, null, null, filters);
+        assertEquals(Arrays.asList(comments.get(0).id, comments.get(1).id), idsOf(first));
+
+        // Same title as the next entity: the key breaks the tie
+        Comment last = (Comment) first.get(1);
+        List<Model> second = loader.fetchAfter(2, "title", "ASC", last.title, last.id, null, null, filters);
+        assertEquals(Arrays.asList(comments.get(2).id, comments.get(3).id), idsOf(second));
+
+        last = (Comment) second.get(1);
+        assertTrue(loader.fetchAfter(2, "title", "ASC", last.title, last.id, null, null, filters).isEmpty());
+    }
+
+    @Test
+    public void testPagesInDescendingOrder() {
+        ModelLoader loader = new ModelLoader(Comment.class);
+        Map<String, Object> filters = Collections.<String, Object>singletonMap("articleId", -14L);
+
+        List<Model> first = loader.fetchAfter(3, "title", "DESC", null, null, null, null, filters);
+        assertEquals(Arrays.asList(comments.get(3).id, comments.get(2).id, comments.get(1).id), idsOf(first));
+        Comment last = (Comment) first.get(2);
+        assertEquals(Arrays.asList(comments.get(0).id), idsOf(loader.fetchAfter(3, "title", "DESC", last.title, last.id, null, null, filters)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLastValueIsRequiredWithALastKey() {
+        new ModelLoader(Comment.class).fetchAfter(2, "title", "ASC", null, comments.get(0).id, null, null, null);
+    }
+}
@@ -0,0 +1,56 @@
+import org.junit.*;
+import java.lang.reflect.*;
+import java.sql.*;
+import javax.sql.DataSource;
+import play.modules.multijpa.*;
+import play.test.*;
+
+public class LazyConnectionTest extends UnitTest {
+
+    private int borrowed = 0;
+
+    /**
+     * A DataSource counting the connections borrowed from it.
+     */
+    private DataSource countingDataSource() {
+        return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class[]{DataSource.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (!method.getName().equals("getConnection")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                borrowed++;
+                return DriverManager.getConnection("jdbc:hsqldb:mem:lazy", "sa", "");
+            }
+        });
+    }
+
+    @Test
+    public void testConnectionIsBorrowedByTheFirstStatement() throws Exception {
+        Connection connection = new LazyConnectionDataSource(countingDataSource()).getConnection();
+        try {
+            connection.setAutoCommit(false);
+            connection.setReadOnly(true);
+            assertFalse(connection.getAutoCommit());
+            connection.commit();
+            assertEquals(0, borrowed);
+
+            connection.createStatement().close();
+            assertEquals(1, borrowed);
+            // The settings are applied to the borrowed connection
+            assertFalse(connection.getAutoCommit());
+            assertTrue(connection.isReadOnly());
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testUnusedConnectionIsNeverBorrowed() throws Exception {
+        Connection connection = new LazyConnectionDataSource(countingDataSource()).getConnection();
+        connection.setAutoCommit(false);
+        connection.rollback();
+        connection.close();
+        assertTrue(connection.isClosed());
+        assertEquals(0, borrowed);
+    }
+}
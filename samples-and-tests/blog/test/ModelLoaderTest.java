@@ -0,0 +1,49 @@
+import org.junit.*;
+import java.util.*;
+import play.db.Model;
+import play.exceptions.JPAException;
+import play.modules.multijpa.*;
+import play.test.*;
+import models.*;
+
+public class ModelLoaderTest extends UnitTest {
+
+    @Before
+    public void setUp() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        registry.get("mysql").getEntityManager().createQuery("delete from Comment where articleId = -13").executeUpdate();
+        Comment comment = new Comment();
+        comment.articleId = -13L;
+        comment.title = "x";
+        registry.get("mysql").getEntityManager().persist(comment);
+        registry.endTransactions(false);
+    }
+
+    private static Map<String, Object> filters(String title) {
+        Map<String, Object> filters = new HashMap<String, Object>();
+        filters.put("articleId", -13L);
+        filters.put("title", title);
+        return filters;
+    }
+
+    @Test
+    public void testFilterValuesAreBound() {
+        ModelLoader loader = new ModelLoader(Comment.class);
+        assertEquals(1L, loader.countFiltered(null, null, filters("x")).longValue());
+        assertEquals(0L, loader.countFiltered(null, null, filters("x' or '1'='1")).longValue());
+        assertEquals(1, loader.fetchFiltered(0, 10, "title", "DESC", null, null, filters("x")).size());
+    }
+
+    @Test(expected = JPAException.class)
+    public void testUnknownFilterIsRefused() {
+        Map<String, Object> filters = new HashMap<String, Object>();
+        filters.put("1=1 or title", "x");
+        new ModelLoader(Comment.class).countFiltered(null, null, filters);
+    }
+
+    @Test
+    public void testInvalidOrderIsIgnored() {
+        List<Model> comments = new ModelLoader(Comment.class).fetch(0, 10, "id; drop table Comment", "sideways", null, null, "articleId = -13");
+        assertEquals(1, comments.size());
+    }
+}
@@ -0,0 +1,35 @@
+import org.junit.*;
+import java.lang.reflect.Modifier;
+import play.db.Model;
+import play.modules.multijpa.*;
+import play.test.*;
+import models.*;
+
+public class ModelMetadataTest extends UnitTest {
+
+    @Test
+    public void testMetadataIsReadOncePerClass() {
+        assertSame(ModelMetadata.get(Comment.class), ModelMetadata.get(Comment.class));
+        assertNotSame(ModelMetadata.get(Comment.class), ModelMetadata.get(Article.class));
+    }
+
+    @Test
+    public void testMetadataOfAnEntity() {
+        ModelMetadata metadata = ModelMetadata.get(Comment.class);
+        assertEquals("mysql", metadata.getDatabaseName());
+        assertEquals("id", metadata.getKeyField().getName());
+        assertTrue(metadata.getSearchableProperties().contains("title"));
+        assertTrue(metadata.getSearchableProperties().contains("body"));
+
+        Comment comment = new Comment();
+        comment.id = 42L;
+        assertEquals(Long.valueOf(42L), metadata.getKeyValue(comment));
+    }
+
+    @Test
+    public void testStaticFieldsAreNotProperties() {
+        for (Model.Property property : ModelMetadata.get(Comment.class).getProperties()) {
+            assertFalse(property.name, Modifier.isStatic(property.field.getModifiers()));
+        }
+    }
+}
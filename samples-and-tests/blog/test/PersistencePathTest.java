@@ -0,0 +1,46 @@
+import org.junit.*;
+import java.lang.annotation.Annotation;
+import java.util.*;
+import play.db.Model;
+import play.modules.multijpa.*;
+import play.test.*;
+import models.*;
+
+/**
+ * The per-request operations measured by PersistenceBenchmark.
+ */
+public class PersistencePathTest extends UnitTest {
+
+    private Comment comment;
+
+    @Before
+    public void setUp() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        registry.get("mysql").getEntityManager().createQuery("delete from Comment where articleId = -9").executeUpdate();
+        comment = new Comment();
+        comment.articleId = -9L;
+        comment.title = "stored";
+        registry.get("mysql").getEntityManager().persist(comment);
+        registry.endTransactions(false);
+    }
+
+    @Test
+    public void testBindLoadsTheEntityOfTheKey() {
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        params.put("comment.id", new String[]{comment.id.toString()});
+        params.put("comment.title", new String[]{"edited"});
+        Comment bound = (Comment) new MultiJPAPlugin().bind("comment", Comment.class, Comment.class, new Annotation[0], params);
+
+        assertEquals(comment.id, bound.id);
+        assertEquals("edited", bound.title);
+        // Not a parameter: loaded from the database
+        assertEquals(Long.valueOf(-9L), bound.articleId);
+    }
+
+    @Test
+    public void testFetchLoadsAPage() {
+        List<Model> comments = new ModelLoader(Comment.class).fetch(0, 20, null, null, null, null, "articleId = -9");
+        assertEquals(1, comments.size());
+        assertEquals(comment.id, ((Comment) comments.get(0)).id);
+    }
+}
@@ -0,0 +1,26 @@
+import org.junit.*;
+import play.modules.multijpa.*;
+import play.test.*;
+import models.*;
+
+public class QueryCacheTest extends UnitTest {
+
+    @Test
+    public void testQueryIsBuiltOnce() {
+        ModelLoader loader = new ModelLoader(Comment.class);
+        QueryCache cache = QueryCache.get("mysql");
+        loader.count(null, null, "articleId = -12");
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+
+        assertEquals(0L, loader.count(null, null, "articleId = -12").longValue());
+        assertEquals(hits + 1, cache.getHits());
+        assertEquals(misses, cache.getMisses());
+    }
+
+    @Test
+    public void testCacheOfADatabaseIsShared() {
+        assertSame(QueryCache.get("mysql"), QueryCache.get("mysql"));
+        assertNotSame(QueryCache.get("mysql"), QueryCache.get("default"));
+    }
+}
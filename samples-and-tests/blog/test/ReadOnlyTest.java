@@ -0,0 +1,42 @@
+import org.junit.*;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import play.modules.multijpa.*;
+import play.test.*;
+
+public class ReadOnlyTest extends UnitTest {
+
+    @Test
+    public void testReadOnlyDatabase() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        registry.endTransactions(false);
+        registry.setReadOnly("mysql");
+        try {
+            assertTrue(registry.isReadOnly("mysql"));
+            assertFalse(registry.isReadOnly("default"));
+
+            Session mysql = (Session) registry.get("mysql").getEntityManager().getDelegate();
+            assertTrue(mysql.isDefaultReadOnly());
+            assertEquals(FlushMode.MANUAL, mysql.getFlushMode());
+            Session other = (Session) registry.get("default").getEntityManager().getDelegate();
+            assertFalse(other.isDefaultReadOnly());
+        } finally {
+            registry.endTransactions(true);
+            registry.clearReadOnly();
+        }
+    }
+
+    @Test
+    public void testAllDatabasesReadOnly() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        registry.endTransactions(false);
+        registry.setReadOnly();
+        try {
+            assertTrue(registry.isReadOnly("default"));
+            assertTrue(registry.isReadOnly("mysql"));
+        } finally {
+            registry.clearReadOnly();
+        }
+        assertFalse(registry.isReadOnly("mysql"));
+    }
+}
@@ -0,0 +1,41 @@
+import org.junit.*;
+import java.util.*;
+import play.modules.multijpa.*;
+import play.test.*;
+import models.*;
+
+public class RelationChoicesTest extends UnitTest {
+
+    @Before
+    public void setUp() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        registry.get("mysql").getEntityManager().createQuery("delete from Comment where articleId = -16").executeUpdate();
+        for (String title : new String[]{"A unique choice", "Another title"}) {
+            Comment comment = new Comment();
+            comment.articleId = -16L;
+            comment.title = title;
+            registry.get("mysql").getEntityManager().persist(comment);
+        }
+        registry.endTransactions(false);
+    }
+
+    @Test
+    public void testSearchMatchesTheKeywords() {
+        List<Object> choices = new RelationChoices(Comment.class).search("unique CHOICE");
+        assertEquals(1, choices.size());
+        assertEquals("A unique choice", ((Comment) choices.get(0)).title);
+    }
+
+    @Test
+    public void testListIsCapped() {
+        assertTrue(new RelationChoices(Comment.class).list().size() <= 100);
+    }
+
+    @Test
+    public void testChoicesOfAShardedTypeWithoutAKey() {
+        Shards.unbind();
+        // Listed from all shards
+        assertNotNull(new RelationChoices(Visit.class).list());
+        assertNotNull(new RelationChoices(Visit.class).search("/"));
+    }
+}
@@ -0,0 +1,58 @@
+import org.junit.*;
+import java.sql.Connection;
+import java.util.*;
+import javax.sql.DataSource;
+import org.hsqldb.jdbc.jdbcDataSource;
+import play.modules.multijpa.*;
+import play.test.*;
+
+public class ReplicaRoutingTest extends UnitTest {
+
+    private static DataSource hsqldb(String url) {
+        jdbcDataSource dataSource = new jdbcDataSource();
+        dataSource.setDatabase(url);
+        dataSource.setUser("sa");
+        dataSource.setPassword("");
+        return dataSource;
+    }
+
+    private static String urlOf(DataSource dataSource) throws Exception {
+        Connection connection = dataSource.getConnection();
+        try {
+            return connection.getMetaData().getURL();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static ReplicaRoutingDataSource routing(DataSource replica) {
+        return new ReplicaRoutingDataSource("replicated", hsqldb("jdbc:hsqldb:mem:primary"),
+                Collections.singletonList(replica), new DataSourceConfiguration("replicated", new Properties()));
+    }
+
+    @Test
+    public void testReadsAreRoutedToTheReplica() throws Exception {
+        ReplicaRoutingDataSource routing = routing(hsqldb("jdbc:hsqldb:mem:replica"));
+        assertTrue(urlOf(routing).endsWith("primary"));
+
+        routing.setReadOnly(true);
+        try {
+            assertTrue(routing.isReadOnly());
+            assertTrue(urlOf(routing).endsWith("replica"));
+        } finally {
+            routing.setReadOnly(false);
+        }
+        assertTrue(urlOf(routing).endsWith("primary"));
+    }
+
+    @Test
+    public void testUnavailableReplicaFallsBackToThePrimary() throws Exception {
+        ReplicaRoutingDataSource routing = routing(hsqldb("jdbc:hsqldb:hsql://localhost:1/none"));
+        routing.setReadOnly(true);
+        try {
+            assertTrue(urlOf(routing).endsWith("primary"));
+        } finally {
+            routing.setReadOnly(false);
+        }
+    }
+}
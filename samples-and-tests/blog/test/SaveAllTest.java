@@ -0,0 +1,66 @@
+import org.junit.*;
+import java.util.*;
+import play.modules.multijpa.*;
+import play.test.*;
+import models.*;
+
+public class SaveAllTest extends UnitTest {
+
+    @Before
+    public void setUp() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        registry.get("mysql").getEntityManager().createQuery("delete from Comment where articleId = -17").executeUpdate();
+        registry.endTransactions(false);
+    }
+
+    @Test
+    public void testEntitiesAreSavedInBatches() {
+        List<Comment> comments = new ArrayList<Comment>();
+        for (int i = 0; i < 120; i++) {
+            Comment comment = new Comment();
+            comment.articleId = -17L;
+            comment.title = "batched " + i;
+            comments.add(comment);
+        }
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        assertEquals(120, registry.get("mysql").saveAll(comments));
+        registry.endTransactions(false);
+
+        for (Comment comment : comments) {
+            assertNotNull(comment.id);
+        }
+        assertEquals(120L, registry.get("mysql").getEntityManager()
+                .createQuery("select count(c) from Comment c where c.articleId = -17").getSingleResult());
+        registry.endTransactions(false);
+    }
+
+    @Test
+    public void testDetachedEntitiesAreMerged() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        Comment comment = new Comment();
+        comment.articleId = -17L;
+        comment.title = "Before";
+        registry.get("mysql").saveAll(Collections.singletonList(comment));
+        registry.endTransactions(false);
+
+        comment.title = "After";
+        registry.get("mysql").saveAll(Collections.singletonList(comment));
+        registry.endTransactions(false);
+
+        assertEquals("After", registry.get("mysql").getEntityManager().find(Comment.class, comment.id).title);
+        registry.endTransactions(false);
+    }
+
+    @Test
+    public void testEntityOfAnotherDatabaseIsRefused() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        try {
+            registry.get("mysql").saveAll(Collections.singletonList(new Article("title", "body")));
+            fail("Article is not an entity of mysql");
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            registry.endTransactions(true);
+        }
+    }
+}
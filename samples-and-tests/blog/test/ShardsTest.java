@@ -0,0 +1,68 @@
+import org.junit.*;
+import java.util.*;
+import play.exceptions.JPAException;
+import play.modules.multijpa.*;
+import play.test.*;
+import models.*;
+
+public class ShardsTest extends UnitTest {
+
+    @After
+    public void unbind() {
+        Shards.unbind();
+    }
+
+    @Test
+    public void testShardsOfADatabase() {
+        EntityIndex.Sharding sharding = EntityIndex.current().getSharding("logs");
+        assertEquals(Arrays.asList("logs0", "logs1"), sharding.shardNames);
+        assertTrue(sharding.entityClasses.contains(Visit.class));
+        assertTrue(Shards.isSharded("logs"));
+        assertFalse(Shards.isSharded("mysql"));
+        // Each shard maps the entities of the sharded database
+        assertTrue(EntityIndex.current().getEntityClasses("logs1").contains(Visit.class));
+    }
+
+    @Test
+    public void testKeysAreResolvedModuloTheShards() {
+        assertEquals("logs0", Shards.resolve("logs", 4L));
+        assertEquals("logs1", Shards.resolve("logs", 3L));
+        assertEquals("mysql", Shards.resolve("mysql", 3L));
+
+        Visit visit = new Visit();
+        visit.articleId = 5L;
+        assertEquals("logs1", Shards.shardOf(visit));
+    }
+
+    @Test
+    public void testBoundKeySelectsTheShard() {
+        Shards.bind(2L);
+        assertEquals("logs0", Shards.resolve("logs"));
+        Shards.unbind();
+        try {
+            Shards.resolve("logs");
+            fail("A sharded database needs a key");
+        } catch (JPAException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEntityOfAnotherShardIsNotWritten() {
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        Visit visit = new Visit();
+        visit.articleId = 3L;
+        try {
+            registry.get("logs0").getEntityManager().persist(visit);
+            fail("The key 3 belongs to logs1");
+        } catch (RuntimeException e) {
+            Throwable cause = e;
+            while (!(cause instanceof JPAException) && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            assertTrue(e.toString(), cause instanceof JPAException);
+        } finally {
+            registry.endTransactions(true);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import org.junit.*;
+import javax.persistence.EntityManager;
+import play.exceptions.JPAException;
+import play.modules.multijpa.*;
+import play.test.*;
+import models.*;
+
+public class TransactionCoordinatorTest extends UnitTest {
+
+    private DatastoreRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = DatastoreRegistry.current();
+        registry.endTransactions(false);
+        registry.get("default").getEntityManager().createQuery("delete from Tag where name like 'tx-%'").executeUpdate();
+        registry.get("mysql").getEntityManager().createQuery("delete from Comment where articleId = -23").executeUpdate();
+        registry.endTransactions(false);
+    }
+
+    private long countComments() {
+        long count = (Long) registry.get("mysql").getEntityManager()
+                .createQuery("select count(c) from Comment c where c.articleId = -23").getSingleResult();
+        registry.endTransactions(false);
+        return count;
+    }
+
+    private Tag findTag(String name) {
+        Tag tag = registry.get("default").getEntityManager().find(Tag.class, name);
+        registry.endTransactions(false);
+        return tag;
+    }
+
+    private void persistComment() {
+        Comment comment = new Comment();
+        comment.articleId = -23L;
+        registry.get("mysql").getEntityManager().persist(comment);
+    }
+
+    @Test
+    public void testAllDatabasesAreCommitted() {
+        persistComment();
+        registry.get("default").getEntityManager().persist(new Tag("tx-java", "Java"));
+        registry.endTransactions(false);
+
+        assertEquals(1L, countComments());
+        assertEquals("Java", findTag("tx-java").label);
+    }
+
+    @Test
+    public void testFailedFlushRollsBackAllDatabases() {
+        registry.get("default").getEntityManager().persist(new Tag("tx-java", "Java"));
+        registry.endTransactions(false);
+
+        persistComment();
+        // The key is assigned: the insert waits for the flush, where it violates the key
+        EntityManager em = registry.get("default").getEntityManager();
+        em.persist(new Tag("tx-java", "Duplicate"));
+        try {
+            registry.endTransactions(false);
+            fail("The duplicate key must fail the commit");
+        } catch (JPAException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("nothing was committed"));
+        }
+
+        assertEquals(0L, countComments());
+        assertEquals("Java", findTag("tx-java").label);
+    }
+}
@@ -0,0 +1,66 @@
+import org.junit.*;
+import javax.persistence.EntityManager;
+import play.modules.multijpa.*;
+import play.test.*;
+import models.*;
+
+public class WriteTrackingTest extends UnitTest {
+
+    private DatastoreRegistry registry;
+    private Long id;
+
+    @Before
+    public void setUp() {
+        registry = DatastoreRegistry.current();
+        registry.endTransactions(false);
+        registry.get("mysql").getEntityManager().createQuery("delete from Comment where articleId = -24").executeUpdate();
+        Comment comment = new Comment();
+        comment.articleId = -24L;
+        comment.title = "read";
+        registry.get("mysql").getEntityManager().persist(comment);
+        registry.endTransactions(false);
+        id = comment.id;
+    }
+
+    private Comment findComment() {
+        Comment comment = registry.get("mysql").getEntityManager().find(Comment.class, id);
+        registry.endTransactions(false);
+        return comment;
+    }
+
+    @Test
+    public void testQueryDoesNotWrite() {
+        Datastore datastore = registry.get("mysql");
+        datastore.getEntityManager().createQuery("select count(c) from Comment c where c.articleId = -24").getSingleResult();
+        assertFalse(datastore.isWritten());
+        registry.endTransactions(false);
+        assertTrue(datastore.isTransactionEnded());
+    }
+
+    @Test
+    public void testUnsavedChangeIsNotCommitted() {
+        Datastore datastore = registry.get("mysql");
+        Comment comment = datastore.getEntityManager().find(Comment.class, id);
+        comment.title = "changed";
+        assertFalse(datastore.isWritten());
+        registry.endTransactions(false);
+
+        assertEquals("read", findComment().title);
+    }
+
+    @Test
+    public void testPersistIsCommitted() {
+        Datastore datastore = registry.get("mysql");
+        EntityManager em = datastore.getEntityManager();
+        Comment comment = new Comment();
+        comment.articleId = -24L;
+        comment.title = "written";
+        em.persist(comment);
+        assertTrue(datastore.isWritten());
+        registry.endTransactions(false);
+
+        assertEquals(2L, registry.get("mysql").getEntityManager()
+                .createQuery("select count(c) from Comment c where c.articleId = -24").getSingleResult());
+        registry.endTransactions(false);
+    }
+}
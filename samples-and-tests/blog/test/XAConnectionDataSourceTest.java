@@ -0,0 +1,145 @@
+import org.junit.*;
+import java.io.PrintWriter;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import javax.sql.*;
+import javax.transaction.xa.*;
+import play.modules.multijpa.*;
+import play.test.*;
+
+public class XAConnectionDataSourceTest extends UnitTest {
+
+    /**
+     * An XADataSource over plain HSQLDB connections, recording the calls to its XAResources.
+     */
+    public static class StubXADataSource implements XADataSource {
+
+        static List<String> calls = new ArrayList<String>();
+        static int vote = XAResource.XA_OK;
+
+        private String url;
+        private String user;
+        private String password;
+
+        public void setUrl(String url) {
+            this.url = url;
+        }
+
+        public void setUser(String user) {
+            this.user = user;
+        }
+
+        public void setPassword(String password) {
+            this.password = password;
+        }
+
+        public XAConnection getXAConnection() throws SQLException {
+            return getXAConnection(user, password);
+        }
+
+        public XAConnection getXAConnection(String user, String password) throws SQLException {
+            final Connection connection = DriverManager.getConnection(url, user, password);
+            final XAResource resource = (XAResource) Proxy.newProxyInstance(XAResource.class.getClassLoader(), new Class[]{XAResource.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    calls.add(method.getName());
+                    return method.getName().equals("prepare") ? vote : null;
+                }
+            });
+            return (XAConnection) Proxy.newProxyInstance(XAConnection.class.getClassLoader(), new Class[]{XAConnection.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("getConnection")) {
+                        return connection;
+                    } else if (method.getName().equals("getXAResource")) {
+                        return resource;
+                    } else if (method.getName().equals("close")) {
+                        connection.close();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        public PrintWriter getLogWriter() {
+            return null;
+        }
+
+        public void setLogWriter(PrintWriter out) {
+        }
+
+        public void setLoginTimeout(int seconds) {
+        }
+
+        public int getLoginTimeout() {
+            return 0;
+        }
+
+        public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        StubXADataSource.calls.clear();
+        StubXADataSource.vote = XAResource.XA_OK;
+    }
+
+    private static Connection getConnection() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("db.ledger.xa", StubXADataSource.class.getName());
+        properties.setProperty("db.ledger.url", "jdbc:hsqldb:mem:xa");
+        properties.setProperty("db.ledger.user", "sa");
+        properties.setProperty("db.ledger.pass", "");
+        return new XAConnectionDataSource(new DataSourceConfiguration("ledger", properties)).getConnection();
+    }
+
+    @Test
+    public void testPreparedBranchIsCommittedInTwoPhases() throws Exception {
+        Connection connection = getConnection();
+        try {
+            assertTrue(XAConnectionDataSource.branchOf(connection).prepare());
+            connection.commit();
+        } finally {
+            connection.close();
+        }
+        assertEquals(Arrays.asList("start", "end", "prepare", "commit"), StubXADataSource.calls);
+    }
+
+    @Test
+    public void testPreparedBranchIsRolledBack() throws Exception {
+        Connection connection = getConnection();
+        try {
+            assertTrue(XAConnectionDataSource.branchOf(connection).prepare());
+            connection.rollback();
+        } finally {
+            connection.close();
+        }
+        assertEquals(Arrays.asList("start", "end", "prepare", "rollback"), StubXADataSource.calls);
+    }
+
+    @Test
+    public void testReadOnlyBranchEndsWithItsPrepare() throws Exception {
+        StubXADataSource.vote = XAResource.XA_RDONLY;
+        Connection connection = getConnection();
+        try {
+            assertFalse(XAConnectionDataSource.branchOf(connection).prepare());
+            connection.commit();
+        } finally {
+            connection.close();
+        }
+        assertEquals(Arrays.asList("start", "end", "prepare"), StubXADataSource.calls);
+    }
+
+    @Test
+    public void testBranchWithoutPrepareIsCommittedInOnePhase() throws Exception {
+        Connection connection = getConnection();
+        try {
+            assertFalse(connection.getAutoCommit());
+            connection.commit();
+        } finally {
+            connection.close();
+        }
+        assertEquals(Arrays.asList("start", "end", "commit"), StubXADataSource.calls);
+    }
+}
@@ -0,0 +1,218 @@
+package play.modules.multijpa;
+
+import org.hibernate.cache.Cache;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.CacheProvider;
+import org.hibernate.cache.Timestamper;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process second-level cache of Hibernate, whose regions hold a bounded number of entries.<br />
+ * <br />
+ * Enabled for a database with <code>db.&lt;name&gt;.cache=true</code>, and the query cache with <code>db.&lt;name&gt;.cache.queries=true</code>.
+ * The least recently used entries are evicted beyond <code>db.&lt;name&gt;.cache.maxElements</code> entries per region
+ * (10000 by default), and entries expire after <code>db.&lt;name&gt;.cache.ttl</code> seconds (never by default).
+ * Regions are prefixed by the database name, see DatastoreConfiguration.<br />
+ * <br />
+ * This is a CacheProvider, deprecated by Hibernate 3.3, rather than a RegionFactory: the Hibernate bundled with Play
+ * has no base class for region factories, and one would have to implement the entity, collection, query and timestamps
+ * regions with their access strategies. Hibernate wraps a CacheProvider in all of those itself.
+ */
+@SuppressWarnings("deprecation")
+public class BoundedCacheProvider implements CacheProvider {
+
+    static final String MAX_ELEMENTS = "hibernate.cache.bounded.max_elements";
+    static final String TTL = "hibernate.cache.bounded.ttl";
+
+    /**
+     * Regions of all started providers, for the status.
+     */
+    private static ConcurrentMap<String, BoundedCache> regions = new ConcurrentHashMap<String, BoundedCache>();
+
+    private Map<String, BoundedCache> ownRegions = new HashMap<String, BoundedCache>();
+
+    public synchronized Cache buildCache(String regionName, Properties properties) throws CacheException {
+        int maxElements = Integer.parseInt(properties.getProperty(MAX_ELEMENTS, "10000"));
+        long ttl = Long.parseLong(properties.getProperty(TTL, "0")) * 1000L;
+        BoundedCache cache = new BoundedCache(regionName, maxElements, ttl);
+        ownRegions.put(regionName, cache);
+        regions.put(regionName, cache);
+        return cache;
+    }
+
+    public long nextTimestamp() {
+        return Timestamper.next();
+    }
+
+    public void start(Properties properties) throws CacheException {
+    }
+
+    public synchronized void stop() {
+        for (Map.Entry<String, BoundedCache> entry : ownRegions.entrySet()) {
+            entry.getValue().clear();
+            regions.remove(entry.getKey(), entry.getValue());
+        }
+        ownRegions.clear();
+    }
+
+    public boolean isMinimalPutsEnabledByDefault() {
+        return false;
+    }
+
+    public static String getStatus() {
+        if (regions.isEmpty()) {
+            return "";
+        }
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        out.println("Second-level caches:");
+        out.println("~~~~~~~~~~~~~~~~~~~~");
+        for (Map.Entry<String, BoundedCache> entry : new TreeMap<String, BoundedCache>(regions).entrySet()) {
+            BoundedCache cache = entry.getValue();
+            out.println(entry.getKey() + ": size=" + cache.getElementCountInMemory() + "/" + cache.maxElements
+                    + ", hits=" + cache.hits.get() + ", misses=" + cache.misses.get());
+        }
+        return sw.toString();
+    }
+
+    static class BoundedCache implements Cache {
+
+        private final String regionName;
+        private final int maxElements;
+        private final long ttl;
+        private final Map<Object, Entry> entries;
+
+        private AtomicLong hits = new AtomicLong();
+        private AtomicLong misses = new AtomicLong();
+
+        BoundedCache(String regionName, final int maxElements, long ttl) {
+            this.regionName = regionName;
+            this.maxElements = maxElements;
+            this.ttl = ttl;
+            this.entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+                    return size() > maxElements;
+                }
+            };
+        }
+
+        public Object read(Object key) throws CacheException {
+            return get(key);
+        }
+
+        public Object get(Object key) throws CacheException {
+            Entry entry;
+            synchronized (entries) {
+                entry = entries.get(key);
+                if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+                    entries.remove(key);
+                    entry = null;
+                }
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.value;
+        }
+
+        public void put(Object key, Object value) throws CacheException {
+            Entry entry = new Entry(value, ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE);
+            synchronized (entries) {
+                entries.put(key, entry);
+            }
+        }
+
+        public void update(Object key, Object value) throws CacheException {
+            put(key, value);
+        }
+
+        public void remove(Object key) throws CacheException {
+            synchronized (entries) {
+                entries.remove(key);
+            }
+        }
+
+        public void clear() throws CacheException {
+            synchronized (entries) {
+                entries.clear();
+            }
+        }
+
+        public void destroy() throws CacheException {
+            clear();
+        }
+
+        public void lock(Object key) throws CacheException {
+            // Read-write strategies lock in memory already
+        }
+
+        public void unlock(Object key) throws CacheException {
+        }
+
+        public long nextTimestamp() {
+            return Timestamper.next();
+        }
+
+        public int getTimeout() {
+            // 1 minute, in Timestamper units
+            return Timestamper.ONE_MS * 60000;
+        }
+
+        public String getRegionName() {
+            return regionName;
+        }
+
+        public long getSizeInMemory() {
+            return -1;
+        }
+
+        public long getElementCountInMemory() {
+            synchronized (entries) {
+                return entries.size();
+            }
+        }
+
+        public long getElementCountOnDisk() {
+            return 0;
+        }
+
+        public Map toMap() {
+            Map<Object, Object> map = new HashMap<Object, Object>();
+            synchronized (entries) {
+                for (Map.Entry<Object, Entry> entry : entries.entrySet()) {
+                    map.put(entry.getKey(), entry.getValue().value);
+                }
+            }
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            return "BoundedCache(" + regionName + ")";
+        }
+    }
+
+    private static class Entry {
+
+        final Object value;
+        final long expiresAt;
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
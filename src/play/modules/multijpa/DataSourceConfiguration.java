@@ -3,14 +3,28 @@ package play.modules.multijpa;
 import play.Play;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
 
 public class DataSourceConfiguration {
 
     private static String prefix = "db";
 
+    /**
+     * Values of <code>db</code> or <code>db.&lt;name&gt;</code> which declare a database, as in Play.
+     */
+    private static Pattern databaseSpec = Pattern.compile("mem|fs|java:.+|mysql:.+");
+
     private String name;
     private Properties properties;
+    /**
+     * Overrides the configured URL, for a replica.
+     */
+    private String url = null;
 
     public DataSourceConfiguration(String dataSourceName, Properties properties) {
         initialize(dataSourceName, properties);
@@ -20,6 +34,37 @@ public class DataSourceConfiguration {
         initialize(dataSourceName, Play.configuration);
     }
 
+    /**
+     * Finds the names of all datasources declared in the configuration.<br />
+     * <code>default</code> is declared by <code>db</code> or <code>db.url</code>,
+     * any other name by <code>db.&lt;name&gt;.url</code>, <code>db.&lt;name&gt;.driver</code>,
+     * or <code>db.&lt;name&gt;</code> set to <code>mem</code>, <code>fs</code>, <code>java:...</code> or <code>mysql:...</code>.<br />
+     * Other keys, such as <code>db.user</code> or <code>db.pool.timeout</code>, configure the default database.
+     * @param properties usually Play.configuration
+     * @return sorted names, not null
+     */
+    public static Set<String> getDataSourceNames(Properties properties) {
+        Set<String> names = new TreeSet<String>();
+
+        for (Object object : properties.keySet()) {
+            String key = object.toString();
+            if (key.equals(prefix) || key.equals(prefix + ".url")) {
+                names.add("default");
+                continue;
+            }
+            if (!key.startsWith(prefix + ".")) {
+                continue;
+            }
+            String[] parts = key.split("\\.");
+            if (parts.length == 2 && databaseSpec.matcher(properties.getProperty(key).trim()).matches()) {
+                names.add(parts[1]);
+            } else if (parts.length == 3 && (parts[2].equals("url") || parts[2].equals("driver"))) {
+                names.add(parts[1]);
+            }
+        }
+        return names;
+    }
+
     private void initialize(String dataSourceName, Properties properties) {
         this.name = dataSourceName;
         this.properties = properties;
@@ -65,13 +110,66 @@ public class DataSourceConfiguration {
     }
 
     public String getDB() {
+        if (url != null) {
+            // A replica is always reached by its JDBC URL
+            return null;
+        }
         String defaultValue = properties.getProperty(prefix);
         String specificValue = properties.getProperty(prefix + "." + name);
         return specificValue != null ? specificValue : defaultValue;
     }
 
+    public String getName() {
+        return name;
+    }
+
     public String getUrl() {
-        return get("url");
+        return url != null ? url : get("url");
+    }
+
+    /**
+     * URLs of the read replicas, from <code>db.&lt;name&gt;.replicas</code>, comma separated.
+     * Replicas use the driver, user and password of the primary database.
+     * @return not null
+     */
+    public List<String> getReplicaUrls() {
+        return split(properties.getProperty(getPropertyKey("replicas"), ""));
+    }
+
+    /**
+     * Names of the physical databases of a sharded database, from <code>db.&lt;name&gt;.shards</code>, comma separated.
+     * @return not null, empty if the database is not sharded
+     */
+    public List<String> getShardNames() {
+        return split(properties.getProperty(getPropertyKey("shards"), ""));
+    }
+
+    private static List<String> split(String values) {
+        List<String> list = new ArrayList<String>();
+        for (String value : values.split(",")) {
+            if (value.trim().length() > 0) {
+                list.add(value.trim());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @param replicaUrl one of getReplicaUrls()
+     * @return the same configuration, but for the URL
+     */
+    public DataSourceConfiguration forReplica(String replicaUrl) {
+        DataSourceConfiguration replica = new DataSourceConfiguration(name, properties);
+        replica.url = replicaUrl;
+        return replica;
+    }
+
+    /**
+     * @return the class of the XADataSource of the database from <code>db.&lt;name&gt;.xa</code>,
+     *         or null if its transactions are not XA, see XAConnectionDataSource
+     */
+    public String getXADataSourceClass() {
+        return url != null ? null : properties.getProperty(getPropertyKey("xa"));
     }
 
     public String getDriver() {
@@ -1,6 +1,7 @@
 package play.modules.multijpa;
 
 import com.mchange.v2.c3p0.ComboPooledDataSource;
+import com.mchange.v2.c3p0.DataSources;
 import play.Logger;
 import play.Play;
 import play.exceptions.DatabaseException;
@@ -14,14 +15,21 @@ import java.util.Properties;
 public class DataSourceFactory {
 
     public DataSource createDataSource(String name) {
-        DataSourceConfiguration config = new DataSourceConfiguration(name);
+        return createDataSource(new DataSourceConfiguration(name));
+    }
 
+    public DataSource createDataSource(DataSourceConfiguration config) {
         try {
             DataSource dataSource;
 
             String db = config.getDB();
 
-            if (db != null && db.startsWith("java:")) {
+            if (config.getXADataSourceClass() != null) {
+
+                dataSource = new XAConnectionDataSource(config);
+                Logger.info("Connected to %s with XA transactions", config.getUrl());
+
+            } else if (db != null && db.startsWith("java:")) {
 
                 Context ctx = new InitialContext();
                 dataSource = (DataSource) ctx.lookup(db);
@@ -41,20 +49,6 @@ public class DataSourceFactory {
                     throw new Exception("Driver not found (" + driver + ")");
                 }
 
-                // Try the connection
-                Connection fake = null;
-                try {
-                    if (user == null) {
-                        fake = DriverManager.getConnection(url);
-                    } else {
-                        fake = DriverManager.getConnection(url, user, pass);
-                    }
-                } finally {
-                    if (fake != null) {
-                        fake.close();
-                    }
-                }
-
                 System.setProperty("com.mchange.v2.log.MLog", "com.mchange.v2.log.FallbackMLog");
                 System.setProperty("com.mchange.v2.log.FallbackMLog.DEFAULT_CUTOFF_LEVEL", "OFF");
 
@@ -73,11 +67,15 @@ public class DataSourceFactory {
 
                 dataSource = ds;
 
-                // Try the JDBC connection
+                // Try the JDBC connection, once, through the pool
                 String jdbcUrl = ds.getJdbcUrl();
                 Connection c = null;
                 try {
                     c = ds.getConnection();
+                } catch (SQLException e) {
+                    // Do not leave the threads of a pool that will never be registered
+                    DataSources.destroy(ds);
+                    throw e;
                 } finally {
                     if (c != null) {
                         c.close();
@@ -1,30 +1,242 @@
 package play.modules.multijpa;
 
+import com.mchange.v2.c3p0.DataSources;
+import com.mchange.v2.c3p0.PooledDataSource;
+import play.Logger;
+import play.exceptions.DatabaseException;
+
 import javax.sql.DataSource;
-import java.util.HashMap;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+/**
+ * JVM-wide registry of DataSources, one connection pool for each datasource name.
+ */
 public class DataSourceRegistry {
 
-    private DataSourceFactory dataSourceFactory = new DataSourceFactory();
+    private static DataSourceFactory dataSourceFactory = new DataSourceFactory();
+
+    /**
+     * Pools by datasource name. Replicas are named <code>&lt;name&gt;/replica&lt;index&gt;</code>.
+     */
+    private static ConcurrentMap<String, Future<DataSource>> dataSources = new ConcurrentHashMap<String, Future<DataSource>>();
+
+    private static ConcurrentMap<String, ReplicaRoutingDataSource> replicaRoutings = new ConcurrentHashMap<String, ReplicaRoutingDataSource>();
 
-    private Map<String, DataSource> dataSources = new HashMap<String, DataSource>();
+    /**
+     * Names of the datasources known to have no replica, so that their configuration is read once.
+     */
+    private static ConcurrentMap<String, Boolean> withoutReplicas = new ConcurrentHashMap<String, Boolean>();
 
     /**
      * Retrive the DataSource for the specified name.<br />
-     * An instance of DataSource is created when it's not present yet.
+     * An instance of DataSource is created when it's not present yet. Concurrent callers wait for the same pool,
+     * so that only one pool is ever created for a name.
+     * @param dataSourceName
+     * @return not null
+     */
+    public static DataSource get(final String dataSourceName) {
+        return get(dataSourceName, new Callable<DataSource>() {
+            public DataSource call() throws Exception {
+                return dataSourceFactory.createDataSource(dataSourceName);
+            }
+        });
+    }
+
+    /**
+     * Retrieve the DataSource to give to Hibernate for the specified name: the pool of the primary database,
+     * routed to the replicas by a ReplicaRoutingDataSource if <code>db.&lt;name&gt;.replicas</code> is set.
      * @param dataSourceName
      * @return not null
      */
-    public DataSource get(String dataSourceName) {
-        DataSource dataSource = dataSources.get(dataSourceName);
+    public static DataSource getRoutingDataSource(String dataSourceName) {
+        ReplicaRoutingDataSource routing = getReplicaRouting(dataSourceName);
+        return routing != null ? routing : get(dataSourceName);
+    }
+
+    /**
+     * @param dataSourceName
+     * @return null if the datasource has no replica
+     */
+    public static ReplicaRoutingDataSource getReplicaRouting(String dataSourceName) {
+        ReplicaRoutingDataSource routing = replicaRoutings.get(dataSourceName);
+        if (routing != null || withoutReplicas.containsKey(dataSourceName)) {
+            return routing;
+        }
+
+        DataSourceConfiguration config = new DataSourceConfiguration(dataSourceName);
+        List<String> replicaUrls = config.getReplicaUrls();
+        if (!replicaUrls.isEmpty() && config.getXADataSourceClass() != null) {
+            Logger.warn("The replicas of `%s` are not used, its transactions are XA", dataSourceName);
+            replicaUrls = Collections.emptyList();
+        }
+        if (replicaUrls.isEmpty()) {
+            withoutReplicas.put(dataSourceName, Boolean.TRUE);
+            return null;
+        }
+        List<DataSource> replicas = new ArrayList<DataSource>();
+        for (int i = 0; i < replicaUrls.size(); i++) {
+            final DataSourceConfiguration replicaConfig = config.forReplica(replicaUrls.get(i));
+            try {
+                replicas.add(get(dataSourceName + "/replica" + i, new Callable<DataSource>() {
+                    public DataSource call() throws Exception {
+                        return dataSourceFactory.createDataSource(replicaConfig);
+                    }
+                }));
+            } catch (RuntimeException e) {
+                Logger.error(e, "The replica %s of `%s` is left out", replicaUrls.get(i), dataSourceName);
+            }
+        }
+        routing = new ReplicaRoutingDataSource(dataSourceName, get(dataSourceName), replicas, config);
+        ReplicaRoutingDataSource previous = replicaRoutings.putIfAbsent(dataSourceName, routing);
+        return previous != null ? previous : routing;
+    }
+
+    private static DataSource get(String key, Callable<DataSource> factory) {
+        Future<DataSource> future = dataSources.get(key);
+
+        if (future == null) {
+            FutureTask<DataSource> task = new FutureTask<DataSource>(factory);
+            future = dataSources.putIfAbsent(key, task);
+            if (future == null) {
+                future = task;
+                task.run();
+            }
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while creating the datasource `" + key + "`", e);
+        } catch (ExecutionException e) {
+            // Do not keep a failed pool, the next call will try again.
+            dataSources.remove(key, future);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new DatabaseException("Cannot create the datasource `" + key + "`", cause);
+        }
+    }
+
+    /**
+     * Retrieve statistics of the connection pool for the specified name.
+     * @param dataSourceName
+     * @return null if the pool is not created yet, or if the DataSource is not a pool managed by this module (JNDI)
+     */
+    public static PoolStatistics getStatistics(String dataSourceName) {
+        DataSource dataSource = getIfCreated(dataSourceName);
+
+        if (!(dataSource instanceof PooledDataSource)) {
+            return null;
+        }
+        PooledDataSource pool = (PooledDataSource) dataSource;
+        try {
+            return new PoolStatistics(
+                    pool.getNumBusyConnectionsDefaultUser(),
+                    pool.getNumIdleConnectionsDefaultUser(),
+                    pool.getNumThreadsAwaitingCheckoutDefaultUser());
+        } catch (SQLException e) {
+            Logger.warn("Cannot read the statistics of the datasource `%s`: %s", dataSourceName, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Statistics of all created connection pools, sorted by datasource name.
+     */
+    public static Map<String, PoolStatistics> getAllStatistics() {
+        Map<String, PoolStatistics> statistics = new TreeMap<String, PoolStatistics>();
+        for (String dataSourceName : dataSources.keySet()) {
+            PoolStatistics poolStatistics = getStatistics(dataSourceName);
+            if (poolStatistics != null) {
+                statistics.put(dataSourceName, poolStatistics);
+            }
+        }
+        return statistics;
+    }
+
+    public static String getStatus() {
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        out.println("Datasources:");
+        out.println("~~~~~~~~~~~~");
+        if (dataSources.isEmpty()) {
+            out.println("(not yet connected)");
+        }
+        for (String dataSourceName : new TreeMap<String, Future<DataSource>>(dataSources).keySet()) {
+            PoolStatistics statistics = getStatistics(dataSourceName);
+            out.println(dataSourceName + ": " + (statistics != null ? statistics : "(no statistics)"));
+        }
+        return sw.toString();
+    }
+
+    private static DataSource getIfCreated(String dataSourceName) {
+        Future<DataSource> future = dataSources.get(dataSourceName);
+
+        if (future == null || !future.isDone()) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Close all connection pools and forget them. Called when the application stops, or before a hot reload.
+     */
+    public static void closeAll() {
+        replicaRoutings.clear();
+        withoutReplicas.clear();
+        for (String dataSourceName : dataSources.keySet()) {
+            Future<DataSource> future = dataSources.remove(dataSourceName);
+            if (future == null) {
+                continue;
+            }
+            try {
+                DataSource dataSource = future.get();
+                if (dataSource instanceof PooledDataSource) {
+                    DataSources.destroy(dataSource);
+                    Logger.debug("Closed the connection pool for `%s`", dataSourceName);
+                }
+            } catch (Exception e) {
+                Logger.error(e, "Error while closing the datasource `%s`", dataSourceName);
+            }
+        }
+    }
+
+    /**
+     * A snapshot of the state of a connection pool.
+     */
+    public static class PoolStatistics {
+
+        public final int busyConnections;
+        public final int idleConnections;
+        public final int threadsAwaitingCheckout;
+
+        public PoolStatistics(int busyConnections, int idleConnections, int threadsAwaitingCheckout) {
+            this.busyConnections = busyConnections;
+            this.idleConnections = idleConnections;
+            this.threadsAwaitingCheckout = threadsAwaitingCheckout;
+        }
 
-        if (dataSource != null) {
-            return dataSource;
-        } else {
-            dataSource = dataSourceFactory.createDataSource(dataSourceName);
-            dataSources.put(dataSourceName, dataSource);
-            return dataSource;
+        @Override
+        public String toString() {
+            return "busy=" + busyConnections + ", idle=" + idleConnections + ", waiting=" + threadsAwaitingCheckout;
         }
     }
 }
@@ -1,9 +1,25 @@
 package play.modules.multijpa;
 
+import org.hibernate.EntityMode;
+import org.hibernate.FlushMode;
+import org.hibernate.LockMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.jdbc.Work;
+import org.hibernate.metadata.ClassMetadata;
 import play.Logger;
+import play.db.jpa.JPABase;
 import play.exceptions.JPAException;
 
 import javax.persistence.*;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Datastore for single database, not thread-safe.<br />
@@ -11,23 +27,124 @@ import javax.persistence.*;
  */
 public class Datastore {
 
-    private EntityManagerFactory entityManagerFactory;
+    private String databaseName;
 
     private EntityManager entityManager = null;
 
+    /**
+     * EntityManager reading on the replicas, created on demand. See getReader().
+     */
+    private EntityManager readEntityManager = null;
+
+    /**
+     * Routes connections to the replicas, null when the database has none.
+     */
+    private ReplicaRoutingDataSource replicaRouting = null;
+
+    /**
+     * Metrics of the database, null when disabled.
+     */
+    private DatastoreMetrics metrics = null;
+
+    private long transactionStart;
+
+    /**
+     * True once commitPrepared() committed the transaction.
+     */
+    private volatile boolean committedPrepared = false;
+
+    /**
+     * Streams opened in the transaction, closed with it.
+     */
+    private List<EntityStream> streams = null;
+
     /**
      * If true, the database is rolled-back after each invocation.
      */
     boolean readonly = true;
     /**
-     * If true, DatastoreRegistry automatically starts a JPA transaction for each invocation.
+     * If true, DatastoreRegistry automatically starts a JPA transaction for each invocation.<br />
+     * Set <code>db.&lt;name&gt;.autoTxs=false</code> to run reads without an explicit transaction,
+     * then call joinTransaction() before writing.
      */
     boolean autoTxs = true;
 
     boolean transactionBegan = false;
 
-    public Datastore(EntityManagerFactory entityManagerFactory) {
-        this.entityManagerFactory = entityManagerFactory;
+    /**
+     * If true, a transaction which wrote nothing ends with a rollback instead of a flush and a commit.
+     * Set <code>db.&lt;name&gt;.trackWrites=false</code> to always commit.<br />
+     * Optimistic and force-increment locks requested with EntityManager.lock() or find() count as writes,
+     * as their version is checked or incremented at commit. Lock modes set on queries are not seen:
+     * call markWritten() after such a query, or disable trackWrites.
+     */
+    boolean trackWrites = true;
+
+    /**
+     * Number of statements of a JDBC batch of saveAll(), <code>db.&lt;name&gt;.batchSize</code>.
+     */
+    private int batchSize;
+
+    /**
+     * Timeout of the statements of the next transaction in seconds, 0 for none, see setTimeout().
+     */
+    private int timeout = 0;
+
+    /**
+     * Whether something was or may have been written in the transaction, see markWritten().
+     */
+    private boolean written = false;
+
+    /**
+     * Types of the entities saved or deleted in the transaction, null if none.
+     */
+    private Set<Class<?>> changedTypes = null;
+
+    /**
+     * Whether the transaction started by getEntityManager() is read-only, set by DatastoreRegistry for each invocation.
+     */
+    boolean readonlyByDefault = false;
+
+    /**
+     * @param databaseName the EntityManagerFactory is looked up in EntityManagerFactoryRegistry for each transaction,
+     * so that a Datastore kept by a thread survives an application restart.
+     */
+    public Datastore(String databaseName) {
+        this.databaseName = databaseName;
+        DataSourceConfiguration config = new DataSourceConfiguration(databaseName);
+        this.autoTxs = config.getOrElse("autoTxs", "true").equals("true");
+        this.trackWrites = config.getOrElse("trackWrites", "true").equals("true");
+        this.batchSize = getBatchSize(config);
+    }
+
+    /**
+     * Records that the transaction wrote, or may have written, to the database, so that it must be flushed and committed.
+     * Called by the interceptor of the EntityManagerFactory, see DatastoreConfiguration.
+     */
+    public void markWritten() {
+        written = true;
+    }
+
+    /**
+     * Records that entities of a type were saved or deleted, so that the relation choices listing them
+     * are dropped once the transaction commits, see RelationChoices.
+     */
+    void changed(Class<?> type) {
+        if (changedTypes == null) {
+            changedTypes = new HashSet<Class<?>>();
+        }
+        changedTypes.add(type);
+    }
+
+    /**
+     * @return true if the transaction must be flushed and committed rather than rolled back
+     */
+    public boolean isWritten() {
+        return written || !trackWrites;
+    }
+
+    public String getDatabaseName() {
+        return databaseName;
     }
 
     /**
@@ -35,82 +152,443 @@ public class Datastore {
      * @return <code>null</code> if application.conf does not contain a database configuration for <code>databaseName</code>.
      */
     public EntityManager getEntityManager() {
-        Logger.debug("Datastore automatically starting a transaction.");
-        // TODO when "readonly" is set in the original JPAPlugin.
-        beginTransaction(false);
+        if (entityManager == null) {
+            // The EntityManager is created at the first use in each invocation.
+            beginTransaction(readonlyByDefault);
+        }
         return entityManager;
     }
 
+    /**
+     * Starts the JPA transaction now if this Datastore runs without automatic transactions.
+     * Writes need a transaction, reads do not.
+     */
+    public void joinTransaction() {
+        EntityTransaction transaction = getEntityManager().getTransaction();
+        if (!transaction.isActive()) {
+            transaction.begin();
+        }
+    }
+
     /*
      * Tell to JPA do not commit the current transaction
      */
     public void setRollbackOnly() {
-        entityManager.getTransaction().setRollbackOnly();
+        EntityTransaction transaction = getEntityManager().getTransaction();
+        if (transaction.isActive()) {
+            transaction.setRollbackOnly();
+        }
+    }
+
+    /**
+     * Bounds the statements of the next transaction of this Datastore, reset when it ends.<br />
+     * Statements still running past the timeout are cancelled by the JDBC driver, which fails the transaction.
+     * @param seconds the timeout of the whole transaction, 0 for none
+     */
+    public void setTimeout(int seconds) {
+        this.timeout = seconds;
     }
 
     /**
      * initialize the JPA context and starts a JPA transaction
      *
-     * @param readonly true for a readonly transaction
+     * @param readonly true for a readonly transaction: the Hibernate session loads read-only entities, is never flushed,
+     *                 and uses a read-only JDBC connection
      */
     public void beginTransaction(boolean readonly) {
         if (transactionBegan) {
             return;
         }
-        transactionBegan = true;
+        EntityManagerFactory entityManagerFactory = EntityManagerFactoryRegistry.get(databaseName);
+        metrics = DatastoreMetrics.get(databaseName);
+        replicaRouting = DataSourceRegistry.getReplicaRouting(databaseName);
+        if (replicaRouting != null) {
+            replicaRouting.setReadOnly(readonly);
+        }
         entityManager = entityManagerFactory.createEntityManager();
-        entityManager.setFlushMode(FlushModeType.COMMIT);
-        entityManager.setProperty("org.hibernate.readOnly", readonly);
-        if (autoTxs) {
-            entityManager.getTransaction().begin();
+        transactionBegan = true;
+        transactionStart = System.nanoTime();
+        if (metrics != null) {
+            metrics.entityManagerOpened();
+            metrics.transactionBegan();
+        }
+        try {
+            entityManager.setFlushMode(FlushModeType.COMMIT);
+            if (autoTxs) {
+                if (timeout > 0) {
+                    // Hibernate sets the remaining time as the query timeout of each statement of the transaction
+                    ((Session) entityManager.getDelegate()).getTransaction().setTimeout(timeout);
+                }
+                entityManager.getTransaction().begin();
+            }
+            if (readonly) {
+                setReadOnly(entityManager);
+            }
+            this.readonly = readonly;
+        } catch (RuntimeException e) {
+            // Leave this Datastore usable by the next invocation
+            close();
+            throw e;
+        }
+    }
+
+    private static void setReadOnly(EntityManager entityManager) {
+        Session session = (Session) entityManager.getDelegate();
+        // No snapshot is kept for dirty-checking, and nothing is flushed
+        session.setDefaultReadOnly(true);
+        session.setFlushMode(FlushMode.MANUAL);
+        // Borrowed lazily, see LazyConnectionDataSource
+        session.doWork(new Work() {
+            public void execute(Connection connection) throws SQLException {
+                connection.setReadOnly(true);
+            }
+        });
+    }
+
+    /**
+     * Chooses the EntityManager of a query which may read on a replica.<br />
+     * It's the EntityManager of the transaction, unless the database has replicas, the transaction is not read-only,
+     * wrote nothing and holds no entity yet: then it's a second, read-only EntityManager, without a transaction,
+     * closed with the transaction. The entities it reads are moved to the EntityManager of the transaction,
+     * which holds entities from then on: the following reads of the transaction run on the primary.
+     * <pre>
+     * Datastore.Reader reader = datastore.getReader();
+     * List results = reader.list(reader.entityManager.createQuery(q));
+     * </pre>
+     * @return a Reader for one query, to be run at once; not null
+     */
+    public Reader getReader() {
+        EntityManager transactional = getEntityManager();
+        boolean onReplica = replicaRouting != null && !readonly && !written
+                && ((Session) transactional.getDelegate()).getStatistics().getEntityCount() == 0;
+        if (!onReplica) {
+            // The reads must see the writes of the transaction, and return the entities it holds
+            return new Reader(transactional, null);
+        }
+        if (readEntityManager == null) {
+            readEntityManager = EntityManagerFactoryRegistry.get(databaseName).createEntityManager();
+            if (metrics != null) {
+                metrics.entityManagerOpened();
+            }
+            setReadOnly(readEntityManager);
+        }
+        return new Reader(readEntityManager, replicaRouting);
+    }
+
+    /**
+     * Moves entities read on a replica to the transaction, without a query, so that they can be saved.
+     * The transaction held no entity, so none of them can be there already.
+     */
+    private void attach(Collection<?> results) {
+        Session readSession = (Session) readEntityManager.getDelegate();
+        Session session = (Session) entityManager.getDelegate();
+        for (Object result : results) {
+            if (result != null && readSession.contains(result)) {
+                readSession.evict(result);
+                session.lock(result, LockMode.NONE);
+            }
+        }
+    }
+
+    static int getBatchSize(DataSourceConfiguration config) {
+        return Integer.parseInt(config.getOrElse("batchSize", "50"));
+    }
+
+    /**
+     * Saves entities of this database in JDBC batches of <code>db.&lt;name&gt;.batchSize</code> statements (50 by default).<br />
+     * New entities are persisted, detached ones merged, and the EntityManager is flushed and cleared after each batch:
+     * entities loaded before in the transaction are detached as well.<br />
+     * Batches of inserts are disabled by Hibernate for entities whose key is generated by an identity column.
+     * @param entities entities of this database, JPABase or plain entities
+     * @return the number of saved entities
+     * @throws IllegalArgumentException if an object is not an entity of this database
+     */
+    public int saveAll(Collection<?> entities) {
+        EntityManager em = getEntityManager();
+        SessionFactory sessionFactory = ((Session) em.getDelegate()).getSessionFactory();
+        long start = System.nanoTime();
+        List<Object> batch = new ArrayList<Object>(batchSize);
+        int count = 0;
+        for (Object entity : entities) {
+            ClassMetadata classMetadata = sessionFactory.getClassMetadata(entity.getClass());
+            if (classMetadata == null) {
+                throw new IllegalArgumentException("Cannot save " + entity.getClass().getName() + ", it is not an entity of `" + databaseName + "`");
+            }
+            Object managed;
+            if (em.contains(entity)) {
+                managed = entity;
+            } else if (classMetadata.getIdentifier(entity, EntityMode.POJO) == null) {
+                em.persist(entity);
+                managed = entity;
+            } else {
+                managed = em.merge(entity);
+            }
+            if (managed instanceof JPABase) {
+                ((JPABase) managed).willBeSaved = true;
+            }
+            batch.add(managed);
+            if (batch.size() == batchSize) {
+                flushBatch(em, batch);
+            }
+            count++;
+        }
+        flushBatch(em, batch);
+
+        long millis = (System.nanoTime() - start) / 1000000;
+        Logger.debug("JPA -> Saved %d entities in `%s` in %d ms (%d/s)", count, databaseName, millis, millis > 0 ? count * 1000L / millis : count);
+        return count;
+    }
+
+    private static void flushBatch(EntityManager em, List<Object> batch) {
+        if (batch.isEmpty()) {
+            return;
         }
-        this.readonly = readonly;
+        em.flush();
+        for (Object entity : batch) {
+            if (entity instanceof JPABase) {
+                ((JPABase) entity).willBeSaved = false;
+            }
+        }
+        batch.clear();
+        em.clear();
+    }
+
+    /**
+     * Streams the results of a query in bounded memory, on a replica if the database has any, see EntityStream.<br />
+     * The stream has a session of its own, and is closed with the transaction at the latest.
+     * @param query a JPQL query, whose parameters are ?1, ?2...
+     * @return not null
+     */
+    public <T> EntityStream<T> stream(String query, Object... params) {
+        // Begins the transaction, which closes the stream when it ends
+        getEntityManager();
+        EntityStream<T> stream = new EntityStream<T>(databaseName, EntityManagerFactoryRegistry.get(databaseName),
+                readonly ? null : DataSourceRegistry.getReplicaRouting(databaseName), query, params);
+        if (streams == null) {
+            streams = new ArrayList<EntityStream>();
+        }
+        streams.add(stream);
+        return stream;
     }
 
     public boolean isTransactionEnded() {
         return entityManager == null;
     }
 
+    /**
+     * @return true if a transaction began and is still active
+     */
+    public boolean isTransactionActive() {
+        return entityManager != null && entityManager.getTransaction().isActive();
+    }
+
+    /**
+     * Flushes the changes of the transaction before it is committed with other databases, see TransactionCoordinator,
+     * so that constraint violations and lock conflicts are raised before any database commits.
+     * Nothing is flushed afterwards: the commit only sends the commit to the database.
+     * @return true if the transaction has to be committed, false if it can only be rolled back or wrote nothing
+     */
+    public boolean prepare() {
+        if (!isTransactionActive() || readonly || !isWritten() || entityManager.getTransaction().getRollbackOnly()) {
+            return false;
+        }
+        entityManager.flush();
+        ((Session) entityManager.getDelegate()).setFlushMode(FlushMode.MANUAL);
+        return true;
+    }
+
+    /**
+     * Prepares the XA branch of the flushed transaction, when the database is XA, see XAConnectionDataSource.
+     * Once prepared, the database guarantees that the commit succeeds.
+     * @return true if the database is XA, false if the commit can still fail
+     * @throws JPAException if the database refused to prepare, the transaction must then be rolled back
+     */
+    public boolean prepareXA() {
+        final XAConnectionDataSource.Branch[] branch = new XAConnectionDataSource.Branch[1];
+        ((Session) entityManager.getDelegate()).doWork(new Work() {
+            public void execute(Connection connection) throws SQLException {
+                branch[0] = XAConnectionDataSource.branchOf(LazyConnectionDataSource.getBorrowed(connection));
+            }
+        });
+        if (branch[0] == null) {
+            return false;
+        }
+        try {
+            branch[0].prepare();
+            return true;
+        } catch (SQLException e) {
+            throw new JPAException("Cannot prepare the XA transaction of `" + databaseName + "`", e);
+        }
+    }
+
+    /**
+     * Commits a transaction flushed by prepare(), possibly on another thread than the one of the Datastore:
+     * as nothing is flushed anymore, no callback of the interceptor runs there.
+     * endTransaction() must follow, on the thread of the Datastore.
+     */
+    void commitPrepared() {
+        try {
+            entityManager.getTransaction().commit();
+            committedPrepared = true;
+        } catch (Throwable e) {
+            throw commitFailure(e);
+        }
+    }
+
+    private static JPAException commitFailure(Throwable e) {
+        for (int i = 0; i < 10; i++) {
+            if (e instanceof PersistenceException && e.getCause() != null) {
+                e = e.getCause();
+                break;
+            }
+            e = e.getCause();
+            if (e == null) {
+                break;
+            }
+        }
+        return new JPAException("Cannot commit", e);
+    }
+
     public void endTransaction(boolean rollback) {
         if (isTransactionEnded()) {
             return;
         }
         
         EntityTransaction transaction = entityManager.getTransaction();
+        boolean active = false;
+        boolean committed = false;
 
         try {
-            if (!autoTxs || !transaction.isActive()) {
+            if (!transaction.isActive()) {
+                // Committed by commitPrepared()
+                active = committed = committedPrepared;
                 return;
             }
+            active = true;
 
             if (readonly || rollback || transaction.getRollbackOnly()) {
                 transaction.rollback();
                 return;
             }
 
+            if (!isWritten()) {
+                // Nothing to flush: ending without a commit skips the dirty checking of every loaded entity
+                transaction.rollback();
+                committed = true;
+                return;
+            }
+
             try {
                 transaction.commit();
+                committed = true;
             } catch (Throwable e) {
-                for (int i = 0; i < 10; i++) {
-                    if (e instanceof PersistenceException && e.getCause() != null) {
-                        e = e.getCause();
-                        break;
-                    }
-                    e = e.getCause();
-                    if (e == null) {
-                        break;
-                    }
-                }
-                throw new JPAException("Cannot commit", e);
+                throw commitFailure(e);
             }
         } finally {
+            if (metrics != null && active) {
+                metrics.transactionEnded(System.nanoTime() - transactionStart, committed);
+            }
+            if (committed && changedTypes != null) {
+                RelationChoices.invalidate(databaseName, changedTypes);
+            }
+            close();
+        }
+    }
+
+    private void close() {
+        if (streams != null) {
+            for (EntityStream stream : streams) {
+                stream.close();
+            }
+            streams = null;
+        }
+        try {
             entityManager.close();
+            if (metrics != null) {
+                metrics.entityManagerClosed();
+            }
+            if (readEntityManager != null) {
+                readEntityManager.close();
+                if (metrics != null) {
+                    metrics.entityManagerClosed();
+                }
+            }
+        } finally {
             entityManager = null;
+            readEntityManager = null;
+            if (replicaRouting != null) {
+                replicaRouting.setReadOnly(false);
+                replicaRouting = null;
+            }
             transactionBegan = false;
+            committedPrepared = false;
+            written = false;
+            changedTypes = null;
+            timeout = 0;
         }
     }
 
     public void clearContext() {
-        entityManager.clear();
+        if (entityManager != null) {
+            entityManager.clear();
+        }
+    }
+
+    /**
+     * The EntityManager chosen by getReader() for a query, which runs the query on a replica when it's the read-only one.
+     */
+    public class Reader {
+
+        public final EntityManager entityManager;
+
+        /**
+         * Routes the query to the replicas, null when it runs in the transaction.
+         */
+        private final ReplicaRoutingDataSource replicaRouting;
+
+        private Reader(EntityManager entityManager, ReplicaRoutingDataSource replicaRouting) {
+            this.entityManager = entityManager;
+            this.replicaRouting = replicaRouting;
+        }
+
+        public boolean isOnReplica() {
+            return replicaRouting != null;
+        }
+
+        /**
+         * Runs a query created by the EntityManager of this Reader.
+         */
+        public List list(Query query) {
+            if (replicaRouting == null) {
+                return query.getResultList();
+            }
+            List results;
+            replicaRouting.setReadOnly(true);
+            try {
+                results = query.getResultList();
+            } finally {
+                replicaRouting.setReadOnly(false);
+            }
+            attach(results);
+            return results;
+        }
+
+        /**
+         * Runs a query created by the EntityManager of this Reader.
+         */
+        public Object single(Query query) {
+            if (replicaRouting == null) {
+                return query.getSingleResult();
+            }
+            Object result;
+            replicaRouting.setReadOnly(true);
+            try {
+                result = query.getSingleResult();
+            } finally {
+                replicaRouting.setReadOnly(false);
+            }
+            attach(Collections.singleton(result));
+            return result;
+        }
     }
 }
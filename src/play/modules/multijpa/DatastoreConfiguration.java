@@ -3,31 +3,34 @@ package play.modules.multijpa;
 import org.apache.log4j.Level;
 import org.hibernate.CallbackException;
 import org.hibernate.EmptyInterceptor;
+import org.hibernate.HibernateException;
+import org.hibernate.LockMode;
 import org.hibernate.collection.PersistentCollection;
 import org.hibernate.ejb.Ejb3Configuration;
+import org.hibernate.event.LoadEvent;
+import org.hibernate.event.LoadEventListener;
+import org.hibernate.event.LockEvent;
+import org.hibernate.event.LockEventListener;
+import org.hibernate.event.MergeEventListener;
+import org.hibernate.event.def.DefaultLoadEventListener;
+import org.hibernate.event.def.DefaultLockEventListener;
 import org.hibernate.type.Type;
 import play.Logger;
 import play.Play;
-import play.classloading.ApplicationClasses;
 import play.db.jpa.JPABase;
 import play.exceptions.JPAException;
 import play.utils.Utils;
 
-import javax.persistence.Entity;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceException;
 import javax.sql.DataSource;
 import java.io.Serializable;
 import java.lang.reflect.Field;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Properties;
 
 public class DatastoreConfiguration {
 
     private String databaseName;
-    private EntityManagerFactory entityManagerFactory;
-    private DataSourceRegistry dataSourceRegistry = new DataSourceRegistry();
 
     /**
      * Creates a database configuration from application.conf.
@@ -37,22 +40,11 @@ public class DatastoreConfiguration {
         this.databaseName = databaseName;
     }
 
-    private List<Class> getAllEntityClasses() {
-        List<Class> classes = Play.classloader.getAnnotatedClasses(Entity.class);
-        if (classes.isEmpty() && Play.configuration.getProperty("jpa.entities", "").equals("")) {
-            return classes;
-        }
-        return classes;
-    }
-
-    private List<Class> getEntityClasses(String databaseName) {
-        List<Class> classes = new LinkedList<Class>();
-        for (Class clazz : getAllEntityClasses()) {
-            if (ModelEnhancer.getDatabaseName(clazz).equals(databaseName)) {
-                classes.add(clazz);
-            }
-        }
-        return classes;
+    /**
+     * @return true if a lock mode has effects at commit, such as a version check or increment
+     */
+    private static boolean requiresCommit(LockMode lockMode) {
+        return lockMode != null && lockMode != LockMode.NONE && lockMode != LockMode.READ;
     }
 
     /**
@@ -60,7 +52,7 @@ public class DatastoreConfiguration {
      * @return
      */
     private Ejb3Configuration createEjb3Configuration() {
-        DataSource dataSource = dataSourceRegistry.get(databaseName);
+        DataSource dataSource = DataSourceRegistry.getRoutingDataSource(databaseName);
         String defaultDriverName = Play.configuration.getProperty("db.driver");
         String driverName = Play.configuration.getProperty("db." + databaseName + ".driver");
 
@@ -70,7 +62,8 @@ public class DatastoreConfiguration {
 
         Ejb3Configuration cfg = new Ejb3Configuration();
 
-        cfg.setDataSource(dataSource);
+        // A connection is borrowed from the pool at the first statement, not when the transaction begins
+        cfg.setDataSource(new LazyConnectionDataSource(dataSource, DatastoreMetrics.get(databaseName)));
 
         if (!Play.configuration.getProperty("jpa.ddl", Play.mode.isDev() ? "update" : "none").equals("none")) {
             cfg.setProperty("hibernate.hbm2ddl.auto", Play.configuration.getProperty("jpa.ddl", "update"));
@@ -91,12 +84,56 @@ public class DatastoreConfiguration {
         // This is really hacky. We should move to something better than Hibernate like EBEAN
         cfg.setInterceptor(new EmptyInterceptor() {
 
+            @Override
+            public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+                Shards.checkShard(databaseName, entity);
+                DatastoreRegistry.markWritten(databaseName);
+                DirtyTracking.reset(entity);
+                DatastoreRegistry.changed(databaseName, entity.getClass());
+                return false;
+            }
+
+            @Override
+            public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState, String[] propertyNames, Type[] types) {
+                Shards.checkShard(databaseName, entity);
+                DatastoreRegistry.markWritten(databaseName);
+                DatastoreRegistry.changed(databaseName, entity.getClass());
+                return false;
+            }
+
+            @Override
+            public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+                Shards.checkShard(databaseName, entity);
+                DatastoreRegistry.markWritten(databaseName);
+                DatastoreRegistry.changed(databaseName, entity.getClass());
+            }
+
+            @Override
+            public boolean onLoad(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+                if (!(entity instanceof JPABase)) {
+                    // Plain entities are dirty checked, their changes are flushed without an explicit save
+                    DatastoreRegistry.markWritten(databaseName);
+                }
+                return false;
+            }
+
+            @Override
+            public String onPrepareStatement(String sql) {
+                if (!sql.regionMatches(true, 0, "select", 0, 6)) {
+                    // Inserts, updates, deletes, bulk and native statements
+                    DatastoreRegistry.markWritten(databaseName);
+                }
+                return sql;
+            }
+
             @Override
             public int[] findDirty(Object o, Serializable id, Object[] arg2, Object[] arg3, String[] arg4, Type[] arg5) {
                 if (o instanceof JPABase && !((JPABase) o).willBeSaved) {
                     return new int[0];
                 }
-                return null;
+                DatastoreRegistry.markWritten(databaseName);
+                // null when the entity is not tracked: Hibernate compares its snapshot
+                return DirtyTracking.findDirty(o, arg2, arg3, arg4, arg5);
             }
 
             @Override
@@ -143,6 +180,46 @@ public class DatastoreConfiguration {
         } else {
             org.apache.log4j.Logger.getLogger("org.hibernate.SQL").setLevel(Level.OFF);
         }
+        // Inserts and updates are sent in JDBC batches, grouped by entity, see Datastore.saveAll()
+        cfg.setProperty("hibernate.jdbc.batch_size", String.valueOf(Datastore.getBatchSize(new DataSourceConfiguration(databaseName))));
+        cfg.setProperty("hibernate.jdbc.batch_versioned_data", "true");
+        cfg.setProperty("hibernate.order_inserts", "true");
+        cfg.setProperty("hibernate.order_updates", "true");
+        // With db.<name>.cache=true, @Cacheable entities are kept in regions of their own for each database,
+        // so that entity names cannot collide
+        DataSourceConfiguration config = new DataSourceConfiguration(databaseName);
+        boolean cache = config.getOrElse("cache", "false").equals("true");
+        cfg.setProperty("hibernate.cache.use_second_level_cache", String.valueOf(cache));
+        cfg.setProperty("hibernate.cache.use_query_cache", String.valueOf(cache && config.getOrElse("cache.queries", "false").equals("true")));
+        cfg.setProperty("javax.persistence.sharedCache.mode", "ENABLE_SELECTIVE");
+        cfg.setProperty("hibernate.cache.region_prefix", databaseName);
+        cfg.setProperty("hibernate.cache.provider_class", BoundedCacheProvider.class.getName());
+        cfg.setProperty(BoundedCacheProvider.MAX_ELEMENTS, config.getOrElse("cache.maxElements", "10000"));
+        cfg.setProperty(BoundedCacheProvider.TTL, config.getOrElse("cache.ttl", "0"));
+        // Optimistic and force-increment locks are verified at commit, which a transaction without writes skips
+        cfg.getEventListeners().setLockEventListeners(new LockEventListener[] {new DefaultLockEventListener() {
+            @Override
+            public void onLock(LockEvent event) throws HibernateException {
+                if (requiresCommit(event.getLockMode())) {
+                    DatastoreRegistry.markWritten(databaseName);
+                }
+                super.onLock(event);
+            }
+        }});
+        cfg.getEventListeners().setLoadEventListeners(new LoadEventListener[] {new DefaultLoadEventListener() {
+            @Override
+            public void onLoad(LoadEvent event, LoadType loadType) throws HibernateException {
+                if (requiresCommit(event.getLockMode())) {
+                    DatastoreRegistry.markWritten(databaseName);
+                }
+                super.onLoad(event, loadType);
+            }
+        }});
+        if (config.getOrElse("dirtyTracking", "false").equals("true")) {
+            cfg.getEventListeners().setMergeEventListeners(new MergeEventListener[] {new DirtyTracking.MergeListener()});
+        }
+        // Queries built by ModelLoader and JPQL are cached by QueryCache, keep their parsed plans as well
+        cfg.setProperty("hibernate.query.plan_cache_max_strong_references", String.valueOf(Math.max(128, QueryCache.getSize(databaseName))));
         // inject additional  hibernate.* settings declared in Play! configuration
         cfg.addProperties((Properties) Utils.Maps.filterMap(Play.configuration, "^hibernate\\..*"));
 
@@ -153,7 +230,8 @@ public class DatastoreConfiguration {
         } catch (Exception e) {
             Logger.error(e, "Error trying to override the hibernate classLoader (new hibernate version ???)");
         }
-        for (Class<?> clazz : getEntityClasses(databaseName)) {
+        EntityIndex entityIndex = EntityIndex.current();
+        for (Class<?> clazz : entityIndex.getEntityClasses(databaseName)) {
             cfg.addAnnotatedClass(clazz);
             Logger.trace("JPA Model for database `" + databaseName + "`: %s", clazz);
         }
@@ -168,13 +246,8 @@ public class DatastoreConfiguration {
                 Logger.warn("JPA -> Entity not found: %s", entity);
             }
         }
-        for (ApplicationClasses.ApplicationClass applicationClass : Play.classes.all()) {
-            if (applicationClass.isClass() || applicationClass.javaPackage == null) {
-                continue;
-            }
-            Package p = applicationClass.javaPackage;
-            Logger.info("JPA -> Adding package: %s", p.getName());
-            cfg.addPackage(p.getName());
+        for (String packageName : entityIndex.getPackageNames()) {
+            cfg.addPackage(packageName);
         }
         String mappingFile = Play.configuration.getProperty("jpa.mapping-file", "");
         if (mappingFile != null && mappingFile.length() > 0) {
@@ -184,21 +257,19 @@ public class DatastoreConfiguration {
     }
 
     /**
-     * The instance of EntityManagerFactory is create at the first time you call this method.
+     * The instance of EntityManagerFactory is created at the first time it is requested for this database,
+     * and then shared through EntityManagerFactoryRegistry.
      * @return not null
      */
     public EntityManagerFactory getEntityManagerFactory() {
-        if (entityManagerFactory == null) {
-            entityManagerFactory = createEntityManagerFactory();
-        }
-        return entityManagerFactory;
+        return EntityManagerFactoryRegistry.get(databaseName);
     }
-    
+
     /**
-     *
+     * Builds a new EntityManagerFactory. Use getEntityManagerFactory() unless you are EntityManagerFactoryRegistry.
      * @return not null
      */
-    private EntityManagerFactory createEntityManagerFactory() {
+    EntityManagerFactory createEntityManagerFactory() {
         Ejb3Configuration cfg = createEjb3Configuration();
 
         Logger.trace("Initializing JPA ...");
@@ -0,0 +1,142 @@
+package play.modules.multijpa;
+
+import play.Logger;
+import play.Play;
+import play.exceptions.JPAException;
+
+import javax.persistence.EntityManager;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs units of work against a database on threads of its own, so that a slow database does not hold the invoker threads.<br />
+ * <br />
+ * Each database has a bounded executor: <code>db.&lt;name&gt;.async.threads</code> threads (10 by default)
+ * and a queue of <code>db.&lt;name&gt;.async.queue</code> tasks (1000 by default), beyond which submit() fails.
+ * A task runs in its own transaction, bound to the worker thread: it is committed when the task returns,
+ * and rolled back when it throws. The shard key of the submitting thread is bound to the worker.
+ * <pre>
+ * Future&lt;Long&gt; count = DatastoreExecutor.submit("stats", new DatastoreExecutor.Work&lt;Long&gt;() {
+ *     public Long run(EntityManager em) {
+ *         return (Long) em.createQuery("select count(v) from Visit v").getSingleResult();
+ *     }
+ * });
+ * waitFor(count);
+ * </pre>
+ */
+public class DatastoreExecutor {
+
+    private static ConcurrentMap<String, ExecutorService> executors = new ConcurrentHashMap<String, ExecutorService>();
+
+    /**
+     * A unit of work run in a transaction of a worker thread.
+     */
+    public interface Work<T> {
+
+        /**
+         * @param em the EntityManager of the database, bound to the worker thread for the duration of the work
+         */
+        T run(EntityManager em) throws Exception;
+    }
+
+    /**
+     * @param databaseName a logical database name, resolved with the shard key of the current thread if sharded
+     * @return the result of the work, which a controller can wait for with waitFor()
+     */
+    public static <T> Future<T> submit(String databaseName, Work<T> work) {
+        return submit(databaseName, work, 0);
+    }
+
+    /**
+     * @param databaseName a logical database name, resolved with the shard key of the current thread if sharded
+     * @param timeout the timeout of the statements of the work in seconds, 0 for none, see Datastore.setTimeout()
+     * @return the result of the work, which a controller can wait for with waitFor()
+     */
+    public static <T> Future<T> submit(final String databaseName, final Work<T> work, final int timeout) {
+        final Object shardKey = Shards.current();
+        try {
+            return getExecutor(databaseName).submit(new Callable<T>() {
+                public T call() throws Exception {
+                    return run(databaseName, shardKey, work, timeout);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new JPAException("Too many tasks are waiting for `" + databaseName + "`", e);
+        }
+    }
+
+    private static <T> T run(String databaseName, Object shardKey, Work<T> work, int timeout) throws Exception {
+        if (shardKey != null) {
+            Shards.bind(shardKey);
+        }
+        DatastoreRegistry registry = DatastoreRegistry.current();
+        try {
+            Datastore datastore = registry.get(Shards.resolve(databaseName));
+            datastore.setTimeout(timeout);
+            T result = work.run(datastore.getEntityManager());
+            registry.endTransactions(false);
+            return result;
+        } finally {
+            // Rolls back if the work failed, does nothing if transactions are already ended
+            registry.endTransactions(true);
+            registry.clearReadOnly();
+            Shards.unbind();
+        }
+    }
+
+    private static ExecutorService getExecutor(String databaseName) {
+        ExecutorService executor = executors.get(databaseName);
+
+        if (executor == null) {
+            DataSourceConfiguration config = new DataSourceConfiguration(databaseName);
+            int threads = Integer.parseInt(config.getOrElse("async.threads", "10"));
+            int queue = Integer.parseInt(config.getOrElse("async.queue", "1000"));
+            ThreadPoolExecutor created = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queue), new NamedThreadFactory("multijpa-" + databaseName));
+            created.allowCoreThreadTimeOut(true);
+            executor = executors.putIfAbsent(databaseName, created);
+            if (executor == null) {
+                executor = created;
+            } else {
+                created.shutdown();
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Stops all workers once their tasks are done, waiting for them at most <code>jpa.async.shutdownTimeout</code> milliseconds
+     * (10000 by default). The tasks still running then are interrupted. Called when the application stops.
+     */
+    public static void shutdown() {
+        Map<String, ExecutorService> stopping = new HashMap<String, ExecutorService>();
+        for (String databaseName : executors.keySet()) {
+            ExecutorService executor = executors.remove(databaseName);
+            if (executor != null) {
+                executor.shutdown();
+                stopping.put(databaseName, executor);
+            }
+        }
+        long deadline = System.currentTimeMillis() + Long.parseLong(Play.configuration.getProperty("jpa.async.shutdownTimeout", "10000"));
+        for (Map.Entry<String, ExecutorService> entry : stopping.entrySet()) {
+            try {
+                if (!entry.getValue().awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    Logger.warn("JPA -> The tasks of `%s` did not end in time, they are interrupted", entry.getKey());
+                    entry.getValue().shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                entry.getValue().shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -1,11 +1,10 @@
 package play.modules.multijpa;
 
-import javax.persistence.EntityManagerFactory;
-
 public class DatastoreFactory {
 
     public Datastore createDatastore(String dataSourceName) {
-        EntityManagerFactory entityManagerFactory = new DatastoreConfiguration(dataSourceName).getEntityManagerFactory();
-        return new Datastore(entityManagerFactory);
+        // Builds the EntityManagerFactory now, so that a misconfigured database fails here.
+        EntityManagerFactoryRegistry.get(dataSourceName);
+        return new Datastore(dataSourceName);
     }
 }
@@ -0,0 +1,343 @@
+package play.modules.multijpa;
+
+import play.Logger;
+import play.Play;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and timings of a database: EntityManagers, transactions, queries and waits for a pooled connection.<br />
+ * <br />
+ * Shown by <code>play status</code> and over JMX. Recording is lock-free.
+ * Queries slower than <code>jpa.metrics.slowQuery</code> milliseconds (1000 by default) are logged,
+ * and the last ones are kept. Disabled with <code>jpa.metrics=false</code>.
+ */
+public class DatastoreMetrics implements DatastoreMetricsMBean {
+
+    private static final int RECENT_SLOW_QUERIES = 20;
+
+    private static ConcurrentMap<String, DatastoreMetrics> metrics = new ConcurrentHashMap<String, DatastoreMetrics>();
+
+    private String databaseName;
+    private long slowQueryNanos;
+
+    private AtomicLong entityManagersOpened = new AtomicLong();
+    private AtomicLong entityManagersClosed = new AtomicLong();
+    private AtomicLong commits = new AtomicLong();
+    private AtomicLong rollbacks = new AtomicLong();
+    private AtomicLong slowQueries = new AtomicLong();
+
+    private Histogram transactions = new Histogram();
+    private Histogram queries = new Histogram();
+    private Histogram poolWaits = new Histogram();
+    private Histogram queriesPerTransaction = new Histogram();
+
+    private ThreadLocal<int[]> queriesInTransaction = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private LinkedList<String> recentSlowQueries = new LinkedList<String>();
+
+    private DatastoreMetrics(String databaseName) {
+        this.databaseName = databaseName;
+        this.slowQueryNanos = Long.parseLong(Play.configuration.getProperty("jpa.metrics.slowQuery", "1000")) * 1000000L;
+    }
+
+    public static boolean isEnabled() {
+        return !Play.configuration.getProperty("jpa.metrics", "true").equals("false");
+    }
+
+    /**
+     * @param databaseName
+     * @return the metrics of the database, created and registered in JMX at the first call, or null if metrics are disabled
+     */
+    public static DatastoreMetrics get(String databaseName) {
+        DatastoreMetrics databaseMetrics = metrics.get(databaseName);
+
+        if (databaseMetrics == null) {
+            if (!isEnabled()) {
+                return null;
+            }
+            databaseMetrics = new DatastoreMetrics(databaseName);
+            DatastoreMetrics previous = metrics.putIfAbsent(databaseName, databaseMetrics);
+            if (previous != null) {
+                return previous;
+            }
+            databaseMetrics.register();
+        }
+        return databaseMetrics;
+    }
+
+    private ObjectName getObjectName() throws Exception {
+        return new ObjectName("play.modules.multijpa:type=Datastore,name=" + ObjectName.quote(databaseName));
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception e) {
+            Logger.warn("Cannot register the JMX metrics of `%s`: %s", databaseName, e.getMessage());
+        }
+    }
+
+    private void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName());
+        } catch (Exception e) {
+            Logger.debug("Cannot unregister the JMX metrics of `%s`: %s", databaseName, e.getMessage());
+        }
+    }
+
+    /**
+     * Forget all metrics and unregister them from JMX. Called when the application stops.
+     */
+    public static void clear() {
+        for (String databaseName : metrics.keySet()) {
+            DatastoreMetrics databaseMetrics = metrics.remove(databaseName);
+            if (databaseMetrics != null) {
+                databaseMetrics.unregister();
+            }
+        }
+    }
+
+    public void entityManagerOpened() {
+        entityManagersOpened.incrementAndGet();
+    }
+
+    public void entityManagerClosed() {
+        entityManagersClosed.incrementAndGet();
+    }
+
+    /**
+     * Records the beginning of a transaction of the current thread: the queries run before, outside of any transaction,
+     * are not counted in it.
+     */
+    public void transactionBegan() {
+        queriesInTransaction.get()[0] = 0;
+    }
+
+    /**
+     * Records the end of a transaction of the current thread, and the number of queries it ran.
+     */
+    public void transactionEnded(long nanos, boolean committed) {
+        (committed ? commits : rollbacks).incrementAndGet();
+        transactions.record(nanos / 1000);
+        int[] count = queriesInTransaction.get();
+        queriesPerTransaction.record(count[0]);
+        count[0] = 0;
+    }
+
+    public void queryExecuted(String sql, long nanos) {
+        queries.record(nanos / 1000);
+        queriesInTransaction.get()[0]++;
+        if (nanos >= slowQueryNanos) {
+            slowQueries.incrementAndGet();
+            String entry = (nanos / 1000000) + " ms: " + sql;
+            Logger.warn("Slow query on `%s`, %s", databaseName, entry);
+            synchronized (recentSlowQueries) {
+                recentSlowQueries.addFirst(entry);
+                if (recentSlowQueries.size() > RECENT_SLOW_QUERIES) {
+                    recentSlowQueries.removeLast();
+                }
+            }
+        }
+    }
+
+    public void connectionBorrowed(long nanos) {
+        poolWaits.record(nanos / 1000);
+    }
+
+    public long getEntityManagersOpened() {
+        return entityManagersOpened.get();
+    }
+
+    public long getEntityManagersClosed() {
+        return entityManagersClosed.get();
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    public long getRollbacks() {
+        return rollbacks.get();
+    }
+
+    public long getQueries() {
+        return queries.getCount();
+    }
+
+    public long getSlowQueries() {
+        return slowQueries.get();
+    }
+
+    public double getTransactionMeanMicros() {
+        return transactions.getMean();
+    }
+
+    public long getTransactionMaxMicros() {
+        return transactions.getMax();
+    }
+
+    public double getQueryMeanMicros() {
+        return queries.getMean();
+    }
+
+    public long getQueryMaxMicros() {
+        return queries.getMax();
+    }
+
+    public double getPoolWaitMeanMicros() {
+        return poolWaits.getMean();
+    }
+
+    public long getPoolWaitMaxMicros() {
+        return poolWaits.getMax();
+    }
+
+    public double getQueriesPerTransactionMean() {
+        return queriesPerTransaction.getMean();
+    }
+
+    public long getQueriesPerTransactionMax() {
+        return queriesPerTransaction.getMax();
+    }
+
+    public long getQueryCacheHits() {
+        QueryCache cache = QueryCache.peek(databaseName);
+        return cache != null ? cache.getHits() : 0;
+    }
+
+    public long getQueryCacheMisses() {
+        QueryCache cache = QueryCache.peek(databaseName);
+        return cache != null ? cache.getMisses() : 0;
+    }
+
+    public String[] getRecentSlowQueries() {
+        synchronized (recentSlowQueries) {
+            return recentSlowQueries.toArray(new String[recentSlowQueries.size()]);
+        }
+    }
+
+    public void reset() {
+        entityManagersOpened.set(0);
+        entityManagersClosed.set(0);
+        commits.set(0);
+        rollbacks.set(0);
+        slowQueries.set(0);
+        transactions.reset();
+        queries.reset();
+        poolWaits.reset();
+        queriesPerTransaction.reset();
+        synchronized (recentSlowQueries) {
+            recentSlowQueries.clear();
+        }
+    }
+
+    public static String getStatus() {
+        if (metrics.isEmpty()) {
+            return "";
+        }
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        out.println("Datastores:");
+        out.println("~~~~~~~~~~~");
+        for (Map.Entry<String, DatastoreMetrics> entry : new TreeMap<String, DatastoreMetrics>(metrics).entrySet()) {
+            DatastoreMetrics m = entry.getValue();
+            out.println(entry.getKey() + ":");
+            out.println("  EntityManagers: opened=" + m.getEntityManagersOpened() + ", closed=" + m.getEntityManagersClosed());
+            out.println("  Transactions: commits=" + m.getCommits() + ", rollbacks=" + m.getRollbacks() + ", micros " + m.transactions);
+            out.println("  Queries: slow=" + m.getSlowQueries() + ", micros " + m.queries);
+            out.println("  Queries per transaction: " + m.queriesPerTransaction);
+            out.println("  Pool wait: micros " + m.poolWaits);
+        }
+        return sw.toString();
+    }
+
+    /**
+     * Lock-free histogram with power-of-two buckets.
+     */
+    static class Histogram {
+
+        private static final int BUCKETS = 40;
+
+        private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private AtomicLong count = new AtomicLong();
+        private AtomicLong sum = new AtomicLong();
+        private AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long previous = max.get();
+            while (value > previous && !max.compareAndSet(previous, value)) {
+                previous = max.get();
+            }
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        double getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) sum.get() / n;
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the percentile
+         */
+        long getPercentile(double percentile) {
+            long n = count.get();
+            long rank = (long) Math.ceil(n * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : 1L << i;
+                }
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() + ", mean=" + Math.round(getMean()) + ", p50<=" + getPercentile(0.5)
+                    + ", p99<=" + getPercentile(0.99) + ", max=" + getMax();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package play.modules.multijpa;
+
+/**
+ * JMX view of DatastoreMetrics, registered as <code>play.modules.multijpa:type=Datastore,name=&lt;database&gt;</code>.
+ */
+public interface DatastoreMetricsMBean {
+
+    long getEntityManagersOpened();
+
+    long getEntityManagersClosed();
+
+    long getCommits();
+
+    long getRollbacks();
+
+    long getQueries();
+
+    long getSlowQueries();
+
+    double getTransactionMeanMicros();
+
+    long getTransactionMaxMicros();
+
+    double getQueryMeanMicros();
+
+    long getQueryMaxMicros();
+
+    double getPoolWaitMeanMicros();
+
+    long getPoolWaitMaxMicros();
+
+    double getQueriesPerTransactionMean();
+
+    long getQueriesPerTransactionMax();
+
+    long getQueryCacheHits();
+
+    long getQueryCacheMisses();
+
+    String[] getRecentSlowQueries();
+
+    void reset();
+}
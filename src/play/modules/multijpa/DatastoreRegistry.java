@@ -2,9 +2,17 @@ package play.modules.multijpa;
 
 import javax.persistence.EntityManager;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * JPA Support<br />
@@ -28,15 +36,41 @@ import java.util.Map;
  *                           | creates
  *                  1...1 EntityManager
  * </pre>
+ *
+ * A registry is bound to a thread at its first use and reused by the following invocations of the thread.
+ * Its Datastores are kept in slots indexed by database, see slotOf(), so that reaching one is an array access.
+ * When the application stops, the slots are numbered again and each registry drops its Datastores at its next use, see reset().
+ * A registry is used by one thread at a time: it can be handed off to another thread with unbind() and bind().
  */
 public class DatastoreRegistry {
 
     private static ThreadLocal<DatastoreRegistry> currentDatastoreServiceRegistry = new ThreadLocal<DatastoreRegistry>();
 
     /**
-     * A map of EntityManagers for each database name.
+     * Slot of each database name, shared by all registries until the application stops.
+     */
+    private static volatile ConcurrentMap<String, Integer> slots = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Route of each logical database name, see getCurrentEntityManager().
+     */
+    private static ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+
+    /**
+     * Datastores of this registry, indexed by slot, null until used.
      */
-    private Map<String, Datastore> datastoreServices = new HashMap<String, Datastore>();
+    private Datastore[] datastores = new Datastore[8];
+
+    /**
+     * The slots the Datastores are indexed by.
+     */
+    private ConcurrentMap<String, Integer> datastoreSlots = slots;
+
+    /**
+     * Names of the databases which are read-only in the current invocation.<br />
+     * null when no database is read-only, empty when all databases are.
+     */
+    private Set<String> readOnlyDatabases = null;
 
     /**
      * Returns the instance of DatastoreRegistry, dedicated for the current thread.
@@ -47,11 +81,123 @@ public class DatastoreRegistry {
 
         if (registry == null) {
             registry = new DatastoreRegistry();
+            currentDatastoreServiceRegistry.set(registry);
             //throw new JPAException("The JPA context is not initialized. JPA Entity Manager automatically start when one or more classes annotated with the @javax.persistence.Entity annotation are found in the application.");
+        } else if (registry.datastoreSlots != slots) {
+            // The application stopped since the last use of the registry
+            registry.datastores = new Datastore[Math.max(8, slots.size())];
+            registry.datastoreSlots = slots;
         }
         return registry;
     }
 
+    /**
+     * Numbers the slots again, and drops the routes of the databases. Called when the application stops:
+     * each registry drops its Datastores at its next use, and sizes its slots for the databases used from then on.
+     */
+    public static void reset() {
+        slots = new ConcurrentHashMap<String, Integer>();
+        routes.clear();
+    }
+
+    /**
+     * Binds a registry to the current thread, replacing the one it had, typically to continue its invocation on this thread.
+     * @param registry a registry no other thread uses anymore, or null to unbind
+     */
+    public static void bind(DatastoreRegistry registry) {
+        if (registry == null) {
+            currentDatastoreServiceRegistry.remove();
+        } else {
+            currentDatastoreServiceRegistry.set(registry);
+        }
+    }
+
+    /**
+     * Unbinds the registry of the current thread, which must not use it anymore.
+     * @return the registry, or null if the thread had none
+     */
+    public static DatastoreRegistry unbind() {
+        DatastoreRegistry registry = currentDatastoreServiceRegistry.get();
+        currentDatastoreServiceRegistry.remove();
+        return registry;
+    }
+
+    /**
+     * Marks the transaction of the current thread on a database as written, if it has one.
+     * @param databaseName a physical database name
+     */
+    static void markWritten(String databaseName) {
+        Datastore datastore = peek(databaseName);
+        if (datastore != null) {
+            datastore.markWritten();
+        }
+    }
+
+    /**
+     * Records that entities of a type were saved or deleted in the transaction of the current thread on a database,
+     * so that the cached relation choices listing them are dropped once it commits.
+     * Without a transaction, they are dropped at once.
+     * @param databaseName a physical database name
+     */
+    static void changed(String databaseName, Class<?> type) {
+        Datastore datastore = peek(databaseName);
+        if (datastore != null && !datastore.isTransactionEnded()) {
+            datastore.changed(type);
+        } else {
+            RelationChoices.invalidate(databaseName, Collections.<Class<?>>singleton(type));
+        }
+    }
+
+    /**
+     * @param databaseName a physical database name
+     * @return the Datastore of the current thread on a database, or null if it has none yet
+     */
+    private static Datastore peek(String databaseName) {
+        DatastoreRegistry registry = currentDatastoreServiceRegistry.get();
+        if (registry == null || registry.datastoreSlots != slots) {
+            return null;
+        }
+        Integer slot = slots.get(databaseName);
+        if (slot == null || slot >= registry.datastores.length) {
+            return null;
+        }
+        return registry.datastores[slot];
+    }
+
+    /**
+     * @param databaseName a physical database name
+     * @return the index of the database in the slots of all registries
+     */
+    public static int slotOf(String databaseName) {
+        ConcurrentMap<String, Integer> slots = DatastoreRegistry.slots;
+        Integer slot = slots.get(databaseName);
+
+        if (slot == null) {
+            synchronized (slots) {
+                slot = slots.get(databaseName);
+                if (slot == null) {
+                    slot = slots.size();
+                    slots.put(databaseName, slot);
+                }
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * @param databaseName a logical database name
+     * @return how the EntityManager of the database is reached, computed once until the classes are scanned again
+     */
+    static Route route(String databaseName) {
+        Route route = routes.get(databaseName);
+
+        if (route == null || !route.isCurrent()) {
+            route = new Route(databaseName);
+            routes.put(databaseName, route);
+        }
+        return route;
+    }
+
     /**
      * Retrive the EntityManager for specific database, and current thread.<br />
      * A transaction automatically starts you gets the EntityManager at first in each invocation.
@@ -59,7 +205,31 @@ public class DatastoreRegistry {
      * @return
      */
     public static EntityManager getCurrentEntityManager(String databaseName) {
-        return current().get(databaseName).getEntityManager();
+        return route(databaseName).getEntityManager();
+    }
+
+    /**
+     * Saves entities in JDBC batches, in the database of each entity, see Datastore.saveAll().<br />
+     * &#64;Sharded entities are saved in the shard of their own key, see Shards.shardOf().
+     * @param entities instances of entity classes, possibly of several databases
+     * @return the number of saved entities
+     */
+    public static int saveAll(Collection<?> entities) {
+        Map<String, List<Object>> byDatabase = new LinkedHashMap<String, List<Object>>();
+        for (Object entity : entities) {
+            String databaseName = Shards.shardOf(entity);
+            List<Object> databaseEntities = byDatabase.get(databaseName);
+            if (databaseEntities == null) {
+                databaseEntities = new ArrayList<Object>();
+                byDatabase.put(databaseName, databaseEntities);
+            }
+            databaseEntities.add(entity);
+        }
+        int count = 0;
+        for (Map.Entry<String, List<Object>> entry : byDatabase.entrySet()) {
+            count += current().get(entry.getKey()).saveAll(entry.getValue());
+        }
+        return count;
     }
 
     /**
@@ -73,24 +243,92 @@ public class DatastoreRegistry {
         return getCurrentEntityManager(ModelEnhancer.getDatabaseName(clazz));
     }
 
+    /**
+     * Retrieve the EntityManager for the shard of a &#64;Sharded Entity class, and current thread.
+     *
+     * @param clazz an instance of Class<T>, which is used to get database name.
+     * @param shardKey the shard key, ignored when the class is not sharded
+     * @param <T> a subclass of Entity
+     * @return always not null
+     */
+    public static <T> EntityManager getCurrentEntityManager(Class<T> clazz, Object shardKey) {
+        return current().get(Shards.resolve(ModelEnhancer.getDatabaseName(clazz), shardKey)).getEntityManager();
+    }
+
     /**
      * Retrieve the Datastore for the databaseName.
      * @param databaseName
      * @return null if databaseName which is not defined in application.conf
      */
     public Datastore get(String databaseName) {
-        Datastore datastore = datastoreServices.get(databaseName);
+        return get(slotOf(databaseName), databaseName);
+    }
 
-        if (datastore != null) {
-            return datastore;
+    /**
+     * Retrieve the Datastore in a slot.
+     * @param slot slotOf(databaseName)
+     * @param databaseName the name of the database of the slot
+     */
+    public Datastore get(int slot, String databaseName) {
+        Datastore[] datastores = this.datastores;
+
+        if (slot < datastores.length) {
+            Datastore datastore = datastores[slot];
+            if (datastore != null) {
+                return datastore;
+            }
         } else {
-            datastore = new DatastoreFactory().createDatastore(databaseName);
+            Datastore[] grown = new Datastore[Math.max(slot + 1, datastores.length * 2)];
+            System.arraycopy(datastores, 0, grown, 0, datastores.length);
+            this.datastores = datastores = grown;
         }
+        Datastore datastore = new DatastoreFactory().createDatastore(databaseName);
+        datastore.readonlyByDefault = isReadOnly(databaseName);
+        datastores[slot] = datastore;
         return datastore;
     }
 
+    /**
+     * Makes databases read-only for the rest of the current invocation.<br />
+     * Transactions which already began are not changed.
+     * @param databaseNames names of the read-only databases, all databases when empty
+     */
+    public void setReadOnly(String... databaseNames) {
+        readOnlyDatabases = new HashSet<String>(Arrays.asList(databaseNames));
+        for (Datastore datastore : datastores) {
+            if (datastore != null) {
+                datastore.readonlyByDefault = isReadOnly(datastore.getDatabaseName());
+            }
+        }
+    }
+
+    /**
+     * Makes all databases read-write again.
+     */
+    public void clearReadOnly() {
+        if (readOnlyDatabases == null) {
+            return;
+        }
+        readOnlyDatabases = null;
+        for (Datastore datastore : datastores) {
+            if (datastore != null) {
+                datastore.readonlyByDefault = false;
+            }
+        }
+    }
+
+    public boolean isReadOnly(String databaseName) {
+        return readOnlyDatabases != null && (readOnlyDatabases.isEmpty() || readOnlyDatabases.contains(databaseName));
+    }
+
     public Collection<Datastore> all() {
-        return datastoreServices.values();
+        List<Datastore> all = new ArrayList<Datastore>();
+        for (Datastore datastore : datastores) {
+            if (datastore != null) {
+                all.add(datastore);
+            }
+        }
+        return all;
     }
 
     /**
@@ -98,14 +336,70 @@ public class DatastoreRegistry {
      * @param rollback true if do rollback
      */
     public void endTransactions(boolean rollback) {
-        for (Datastore datastore : all()) {
-            datastore.endTransaction(rollback);
+        Datastore single = null;
+        List<Datastore> active = null;
+        for (Datastore datastore : datastores) {
+            if (datastore == null || datastore.isTransactionEnded()) {
+                continue;
+            }
+            if (single == null) {
+                single = datastore;
+            } else {
+                if (active == null) {
+                    active = new ArrayList<Datastore>();
+                    active.add(single);
+                }
+                active.add(datastore);
+            }
+        }
+        if (active != null) {
+            TransactionCoordinator.endTransactions(active, rollback);
+        } else if (single != null) {
+            single.endTransaction(rollback);
         }
     }
 
     public void clearAllEntityManagers() {
-        for (Datastore datastore : all()) {
-            datastore.clearContext();
+        for (Datastore datastore : datastores) {
+            if (datastore != null) {
+                datastore.clearContext();
+            }
+        }
+    }
+
+    /**
+     * The way to the EntityManager of a logical database: the shard of the bound key if the database is sharded,
+     * its slot otherwise.
+     */
+    static class Route {
+
+        final String databaseName;
+        final boolean sharded;
+        final int slot;
+
+        private final EntityIndex index;
+        private final ConcurrentMap<String, Integer> routeSlots;
+
+        Route(String databaseName) {
+            this.databaseName = databaseName;
+            this.routeSlots = slots;
+            this.index = EntityIndex.current();
+            this.sharded = index.getSharding(databaseName) != null;
+            this.slot = slotOf(databaseName);
+        }
+
+        /**
+         * @return false once the classes were scanned again or the slots numbered again
+         */
+        boolean isCurrent() {
+            return index == EntityIndex.current() && routeSlots == slots;
+        }
+
+        EntityManager getEntityManager() {
+            if (sharded) {
+                return current().get(Shards.resolve(databaseName)).getEntityManager();
+            }
+            return current().get(slot, databaseName).getEntityManager();
         }
     }
 }
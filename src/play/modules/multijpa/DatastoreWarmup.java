@@ -0,0 +1,160 @@
+package play.modules.multijpa;
+
+import play.Logger;
+import play.Play;
+import play.exceptions.JPAException;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds the connection pool and the EntityManagerFactory of every database when the application starts,
+ * so that the first request to each database does not pay for it.<br />
+ * <br />
+ * Enabled with <code>jpa.warmup=true</code>. Databases are built in parallel,
+ * on at most <code>jpa.warmup.threads</code> threads (4 by default).
+ */
+public class DatastoreWarmup {
+
+    private static Map<String, Timing> timings = Collections.emptyMap();
+
+    public static boolean isEnabled() {
+        return Play.configuration.getProperty("jpa.warmup", "false").equals("true");
+    }
+
+    /**
+     * Names of all databases, declared either in application.conf (<code>db.*</code>) or by the @Database annotation of an entity.
+     * @return sorted names, not null
+     */
+    public static Set<String> findDatabaseNames() {
+        Set<String> names = new TreeSet<String>(DataSourceConfiguration.getDataSourceNames(Play.configuration));
+
+        names.addAll(EntityIndex.current().getDatabaseNames());
+        // A sharded database has no datasource of its own
+        for (Iterator<String> iterator = names.iterator(); iterator.hasNext(); ) {
+            if (Shards.isSharded(iterator.next())) {
+                iterator.remove();
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Builds all databases in parallel and waits for them.
+     * @throws RuntimeException the first failure, after all databases are done
+     */
+    public static void warmUp() {
+        Set<String> databaseNames = findDatabaseNames();
+        if (databaseNames.isEmpty()) {
+            return;
+        }
+        int threads = Math.min(databaseNames.size(), Integer.parseInt(Play.configuration.getProperty("jpa.warmup.threads", "4")));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("multijpa-warmup"));
+
+        long start = System.currentTimeMillis();
+        Map<String, Future<Timing>> futures = new TreeMap<String, Future<Timing>>();
+        try {
+            for (final String databaseName : databaseNames) {
+                futures.put(databaseName, executor.submit(new Callable<Timing>() {
+                    public Timing call() throws Exception {
+                        return warmUp(databaseName);
+                    }
+                }));
+            }
+
+            Map<String, Timing> results = new TreeMap<String, Timing>();
+            RuntimeException failure = null;
+            for (Map.Entry<String, Future<Timing>> entry : futures.entrySet()) {
+                try {
+                    Timing timing = entry.getValue().get();
+                    results.put(entry.getKey(), timing);
+                    Logger.info("JPA -> Database `%s` ready in %d ms (pool %d ms, EntityManagerFactory %d ms)",
+                            entry.getKey(), timing.total(), timing.dataSourceMillis, timing.entityManagerFactoryMillis);
+                } catch (ExecutionException e) {
+                    Logger.error(e.getCause(), "JPA -> Cannot warm up the database `%s`", entry.getKey());
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException
+                                ? (RuntimeException) e.getCause()
+                                : new JPAException("Cannot warm up the database `" + entry.getKey() + "`", e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new JPAException("Interrupted while warming up the databases", e);
+                }
+            }
+            timings = Collections.unmodifiableMap(results);
+            Logger.info("JPA -> %d database(s) warmed up in %d ms", results.size(), System.currentTimeMillis() - start);
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Timing warmUp(String databaseName) {
+        long start = System.currentTimeMillis();
+        DataSourceRegistry.get(databaseName);
+        long dataSourceMillis = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        EntityManagerFactoryRegistry.get(databaseName);
+        long entityManagerFactoryMillis = System.currentTimeMillis() - start;
+
+        return new Timing(dataSourceMillis, entityManagerFactoryMillis);
+    }
+
+    /**
+     * Timings of the last warm up, sorted by database name.
+     */
+    public static Map<String, Timing> getTimings() {
+        return timings;
+    }
+
+    public static String getStatus() {
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        if (!timings.isEmpty()) {
+            out.println("Warm up:");
+            out.println("~~~~~~~~");
+            for (Map.Entry<String, Timing> entry : timings.entrySet()) {
+                out.println(entry.getKey() + ": " + entry.getValue());
+            }
+        }
+        return sw.toString();
+    }
+
+    /**
+     * Time spent to build the pool and the EntityManagerFactory of a database.
+     */
+    public static class Timing {
+
+        public final long dataSourceMillis;
+        public final long entityManagerFactoryMillis;
+
+        public Timing(long dataSourceMillis, long entityManagerFactoryMillis) {
+            this.dataSourceMillis = dataSourceMillis;
+            this.entityManagerFactoryMillis = entityManagerFactoryMillis;
+        }
+
+        public long total() {
+            return dataSourceMillis + entityManagerFactoryMillis;
+        }
+
+        @Override
+        public String toString() {
+            return total() + " ms (pool " + dataSourceMillis + " ms, EntityManagerFactory " + entityManagerFactoryMillis + " ms)";
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package play.modules.multijpa;
+
+/**
+ * Implemented by entities whose field writes are recorded by ModelEnhancer, see DirtyTracking.<br />
+ * Methods are generated, applications do not implement this interface.
+ */
+public interface DirtyTracked {
+
+    /**
+     * @return names of the tracked fields, comma separated, in the order of their bits
+     */
+    String _multijpaGetTrackedFields();
+
+    /**
+     * @return a bit for each tracked field written since the last flush
+     */
+    long _multijpaGetDirty();
+
+    void _multijpaSetDirty(long dirty);
+}
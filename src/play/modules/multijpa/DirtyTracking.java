@@ -0,0 +1,145 @@
+package play.modules.multijpa;
+
+import org.hibernate.EntityMode;
+import org.hibernate.ejb.event.EJB3MergeEventListener;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds the dirty properties of enhanced entities from the fields they wrote, instead of comparing their snapshots.<br />
+ * <br />
+ * With <code>db.&lt;name&gt;.dirtyTracking=true</code>, ModelEnhancer sets a bit of the entity for each write
+ * to one of its persistent fields, and the interceptor of the database reports the written fields as dirty on flush.
+ * The cost of a flush then grows with the number of written fields, not with the number of fields of the saved entities.<br />
+ * <br />
+ * Only the written properties are compared with the snapshot, so that writing the same value changes nothing.
+ * Entities merged into the EntityManager are compared as a whole, see MergeListener.<br />
+ * Hibernate compares snapshots, as without tracking, when:<br />
+ * - no field was written<br />
+ * - a persistent property has no tracked field: embedded components, inherited fields, property access<br />
+ * Values changed in place, such as <code>date.setTime()</code> or a field of another class written directly,
+ * are not seen: assign a new value to the field, or use the accessors of the entity.
+ */
+public class DirtyTracking {
+
+    /**
+     * Marks classes which can not be tracked.
+     */
+    private static final int[] UNTRACKED = new int[0];
+
+    /**
+     * Index of the property of each tracked field, by bit, for each class.
+     */
+    private static ConcurrentMap<Class, int[]> propertyIndexes = new ConcurrentHashMap<Class, int[]>();
+
+    /**
+     * Returns the written properties of an entity whose value changed, and clears its bits.
+     * @param entity an entity being flushed
+     * @param currentState values of the properties of the entity
+     * @param previousState values of the properties when the entity was loaded, or null if unknown
+     * @param propertyNames names of the persistent properties of the entity, as given to the interceptor
+     * @param types types of the properties
+     * @return indexes of the dirty properties, or null to let Hibernate compare the snapshot
+     */
+    public static int[] findDirty(Object entity, Object[] currentState, Object[] previousState, String[] propertyNames, Type[] types) {
+        if (!(entity instanceof DirtyTracked) || previousState == null) {
+            return null;
+        }
+        DirtyTracked tracked = (DirtyTracked) entity;
+        long dirty = tracked._multijpaGetDirty();
+        if (dirty == 0) {
+            return null;
+        }
+        int[] indexes = getPropertyIndexes(tracked, propertyNames);
+        if (indexes == UNTRACKED) {
+            return null;
+        }
+        int[] dirtyIndexes = new int[Long.bitCount(dirty)];
+        int count = 0;
+        for (int bit = 0; bit < indexes.length; bit++) {
+            int i = indexes[bit];
+            if ((dirty & (1L << bit)) == 0 || i < 0) {
+                continue;
+            }
+            // Only the written properties are compared. Collections are dirty checked on their own, as by Hibernate
+            if (!types[i].isCollectionType() && !types[i].isEqual(previousState[i], currentState[i], EntityMode.POJO)) {
+                dirtyIndexes[count++] = i;
+            }
+        }
+        tracked._multijpaSetDirty(0);
+        if (count < dirtyIndexes.length) {
+            int[] trimmed = new int[count];
+            System.arraycopy(dirtyIndexes, 0, trimmed, 0, count);
+            dirtyIndexes = trimmed;
+        }
+        Arrays.sort(dirtyIndexes);
+        return dirtyIndexes;
+    }
+
+    /**
+     * Marks all fields of an entity as written, when its state was copied without its accessors.
+     */
+    public static void markAll(Object entity) {
+        if (entity instanceof DirtyTracked) {
+            ((DirtyTracked) entity)._multijpaSetDirty(-1L);
+        }
+    }
+
+    /**
+     * Forgets the written fields of an entity, whose whole state is about to be inserted.
+     */
+    public static void reset(Object entity) {
+        if (entity instanceof DirtyTracked) {
+            ((DirtyTracked) entity)._multijpaSetDirty(0);
+        }
+    }
+
+    private static int[] getPropertyIndexes(DirtyTracked entity, String[] propertyNames) {
+        Class clazz = entity.getClass();
+        int[] indexes = propertyIndexes.get(clazz);
+
+        if (indexes == null) {
+            List<String> fields = Arrays.asList(entity._multijpaGetTrackedFields().split(","));
+            indexes = new int[fields.size()];
+            Arrays.fill(indexes, -1);
+            for (int i = 0; i < propertyNames.length && indexes != UNTRACKED; i++) {
+                int bit = fields.indexOf(propertyNames[i]);
+                if (bit < 0) {
+                    // Changes of this property would go unnoticed
+                    indexes = UNTRACKED;
+                } else {
+                    indexes[bit] = i;
+                }
+            }
+            propertyIndexes.putIfAbsent(clazz, indexes);
+        }
+        return indexes;
+    }
+
+    /**
+     * Merges as the JPA listener does, then marks all fields of the managed entity as written:
+     * Hibernate copies the merged state into its fields by reflection.
+     */
+    public static class MergeListener extends EJB3MergeEventListener {
+
+        @Override
+        protected void copyValues(EntityPersister persister, Object entity, Object target, SessionImplementor source, Map copyCache) {
+            super.copyValues(persister, entity, target, source, copyCache);
+            markAll(target);
+        }
+    }
+
+    /**
+     * Forgets the properties of the classes, called when Play reloads the application classes.
+     */
+    public static void clear() {
+        propertyIndexes.clear();
+    }
+}
@@ -0,0 +1,177 @@
+package play.modules.multijpa;
+
+import play.Logger;
+import play.Play;
+import play.classloading.ApplicationClasses;
+import play.exceptions.JPAException;
+
+import javax.persistence.Entity;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable index of the entity classes of each database, of the sharded databases, and of the application packages.<br />
+ * <br />
+ * The classpath is scanned once and the index is shared by all DatastoreConfigurations.
+ * It is dropped by MultiJPAPlugin when Play reloads the application classes, and built again on next use.
+ */
+public class EntityIndex {
+
+    private static volatile EntityIndex current;
+
+    private final Map<String, List<Class>> entityClasses;
+    private final Map<String, Sharding> shardings;
+    private final List<String> packageNames;
+
+    private EntityIndex(Map<String, List<Class>> entityClasses, Map<String, Sharding> shardings, List<String> packageNames) {
+        this.entityClasses = entityClasses;
+        this.shardings = shardings;
+        this.packageNames = packageNames;
+    }
+
+    /**
+     * @return the index of the currently loaded application classes, not null
+     */
+    public static EntityIndex current() {
+        EntityIndex index = current;
+
+        if (index == null) {
+            synchronized (EntityIndex.class) {
+                index = current;
+                if (index == null) {
+                    index = scan();
+                    current = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Forget the index, so that the next call to current() scans the reloaded classes.
+     */
+    public static void reset() {
+        current = null;
+    }
+
+    private static EntityIndex scan() {
+        long start = System.currentTimeMillis();
+
+        Map<String, List<Class>> entityClasses = new HashMap<String, List<Class>>();
+        List<Class> classes = Play.classloader.getAnnotatedClasses(Entity.class);
+        for (Class clazz : classes) {
+            String databaseName = ModelEnhancer.getDatabaseName(clazz);
+            List<Class> databaseClasses = entityClasses.get(databaseName);
+            if (databaseClasses == null) {
+                databaseClasses = new ArrayList<Class>();
+                entityClasses.put(databaseName, databaseClasses);
+            }
+            databaseClasses.add(clazz);
+        }
+        // Entities of a sharded database are mapped by each of its physical databases
+        Map<String, Sharding> shardings = new HashMap<String, Sharding>();
+        for (String databaseName : new ArrayList<String>(entityClasses.keySet())) {
+            List<String> shardNames = new DataSourceConfiguration(databaseName).getShardNames();
+            if (shardNames.isEmpty()) {
+                continue;
+            }
+            List<Class> databaseClasses = entityClasses.remove(databaseName);
+            // All entities of a sharded database share its resolver
+            Class<? extends ShardResolver> resolver = null;
+            Class resolverDeclaringClass = null;
+            for (Class clazz : databaseClasses) {
+                Sharded sharded = (Sharded) clazz.getAnnotation(Sharded.class);
+                if (sharded == null) {
+                    continue;
+                }
+                if (resolver == null) {
+                    resolver = sharded.resolver();
+                    resolverDeclaringClass = clazz;
+                } else if (!resolver.equals(sharded.resolver())) {
+                    throw new JPAException("The entities of the sharded database `" + databaseName + "` declare different shard resolvers: "
+                            + resolverDeclaringClass.getName() + " uses " + resolver.getName() + ", "
+                            + clazz.getName() + " uses " + sharded.resolver().getName());
+                }
+            }
+            if (resolver == null) {
+                resolver = ModuloShardResolver.class;
+            }
+            shardings.put(databaseName, new Sharding(Collections.unmodifiableList(shardNames), resolver, Collections.unmodifiableList(databaseClasses)));
+            for (String shardName : shardNames) {
+                List<Class> shardClasses = entityClasses.get(shardName);
+                if (shardClasses == null) {
+                    shardClasses = new ArrayList<Class>();
+                    entityClasses.put(shardName, shardClasses);
+                }
+                shardClasses.addAll(databaseClasses);
+            }
+        }
+        for (Map.Entry<String, List<Class>> entry : entityClasses.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+
+        List<String> packageNames = new ArrayList<String>();
+        for (ApplicationClasses.ApplicationClass applicationClass : Play.classes.all()) {
+            if (applicationClass.isClass() || applicationClass.javaPackage == null) {
+                continue;
+            }
+            Package p = applicationClass.javaPackage;
+            Logger.info("JPA -> Adding package: %s", p.getName());
+            packageNames.add(p.getName());
+        }
+
+        Logger.trace("JPA -> Indexed %d entities of %d database(s) in %d ms", classes.size(), entityClasses.size(), System.currentTimeMillis() - start);
+        return new EntityIndex(Collections.unmodifiableMap(entityClasses), Collections.unmodifiableMap(shardings), Collections.unmodifiableList(packageNames));
+    }
+
+    /**
+     * @param databaseName
+     * @return entity classes bound to the database, not null
+     */
+    public List<Class> getEntityClasses(String databaseName) {
+        List<Class> classes = entityClasses.get(databaseName);
+        return classes != null ? classes : Collections.<Class>emptyList();
+    }
+
+    /**
+     * @return names of the physical databases having at least one entity
+     */
+    public Set<String> getDatabaseNames() {
+        return entityClasses.keySet();
+    }
+
+    /**
+     * @param databaseName a logical database name
+     * @return null if the database is not sharded
+     */
+    public Sharding getSharding(String databaseName) {
+        return shardings.get(databaseName);
+    }
+
+    /**
+     * @return names of the application packages, which may hold package-level annotations
+     */
+    public List<String> getPackageNames() {
+        return packageNames;
+    }
+
+    /**
+     * Physical databases of a sharded database.
+     */
+    public static class Sharding {
+
+        public final List<String> shardNames;
+        public final Class<? extends ShardResolver> resolver;
+        public final List<Class> entityClasses;
+
+        Sharding(List<String> shardNames, Class<? extends ShardResolver> resolver, List<Class> entityClasses) {
+            this.shardNames = shardNames;
+            this.resolver = resolver;
+            this.entityClasses = entityClasses;
+        }
+    }
+}
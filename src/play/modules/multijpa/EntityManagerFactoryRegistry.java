@@ -0,0 +1,106 @@
+package play.modules.multijpa;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import play.Logger;
+import play.exceptions.JPAException;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process-wide registry of EntityManagerFactories, one for each database name.<br />
+ * <br />
+ * An EntityManagerFactory is built once, at the first time it is requested, and shared by all threads.
+ * Once built, retrieving it takes no lock.
+ */
+public class EntityManagerFactoryRegistry {
+
+    private static ConcurrentMap<String, Future<EntityManagerFactory>> entityManagerFactories = new ConcurrentHashMap<String, Future<EntityManagerFactory>>();
+
+    /**
+     * Retrieve the EntityManagerFactory for the specified database name.<br />
+     * The EntityManagerFactory is created when it's not present yet. Concurrent callers wait for the same build.
+     * @param databaseName you must have a configuration with the same name in application.conf
+     * @return not null
+     */
+    public static EntityManagerFactory get(final String databaseName) {
+        Future<EntityManagerFactory> future = entityManagerFactories.get(databaseName);
+
+        if (future == null) {
+            FutureTask<EntityManagerFactory> task = new FutureTask<EntityManagerFactory>(new Callable<EntityManagerFactory>() {
+                public EntityManagerFactory call() throws Exception {
+                    return new DatastoreConfiguration(databaseName).createEntityManagerFactory();
+                }
+            });
+            future = entityManagerFactories.putIfAbsent(databaseName, task);
+            if (future == null) {
+                future = task;
+                task.run();
+            }
+        }
+        return await(databaseName, future);
+    }
+
+    private static EntityManagerFactory await(String databaseName, Future<EntityManagerFactory> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JPAException("Interrupted while building the EntityManagerFactory for `" + databaseName + "`", e);
+        } catch (ExecutionException e) {
+            // Do not keep a failed build, the next call will try again.
+            entityManagerFactories.remove(databaseName, future);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new JPAException("Cannot build the EntityManagerFactory for `" + databaseName + "`", cause);
+        }
+    }
+
+    /**
+     * Evict all entities and query results from the second-level caches of the EntityManagerFactories already built.
+     */
+    public static void evictAll() {
+        for (Map.Entry<String, Future<EntityManagerFactory>> entry : entityManagerFactories.entrySet()) {
+            if (!entry.getValue().isDone()) {
+                continue;
+            }
+            try {
+                EntityManagerFactory entityManagerFactory = entry.getValue().get();
+                if (entityManagerFactory.isOpen()) {
+                    entityManagerFactory.getCache().evictAll();
+                    ((HibernateEntityManagerFactory) entityManagerFactory).getSessionFactory().evictQueries();
+                }
+            } catch (Exception e) {
+                Logger.error(e, "Error while evicting the caches of `%s`", entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Close all EntityManagerFactories and forget them.
+     */
+    public static void closeAll() {
+        for (String databaseName : entityManagerFactories.keySet()) {
+            Future<EntityManagerFactory> future = entityManagerFactories.remove(databaseName);
+            if (future == null) {
+                continue;
+            }
+            try {
+                EntityManagerFactory entityManagerFactory = future.get();
+                if (entityManagerFactory.isOpen()) {
+                    entityManagerFactory.close();
+                }
+            } catch (Exception e) {
+                Logger.error(e, "Error while closing the EntityManagerFactory for `%s`", databaseName);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package play.modules.multijpa;
+
+import org.hibernate.CacheMode;
+import org.hibernate.FlushMode;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import play.Logger;
+import play.exceptions.JPAException;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Forward-only iteration over the results of a query, in bounded memory.<br />
+ * <br />
+ * Rows are read through a JDBC cursor, <code>db.&lt;name&gt;.fetchSize</code> at a time (100 by default),
+ * in a read-only Session of its own which is cleared each time as many rows were read.
+ * An entity must not be used after the next one was retrieved, unless it was copied.
+ * The stream must be closed, which it is when exhausted or when the transaction of the invocation ends.
+ * <pre>
+ * EntityStream&lt;Article&gt; articles = EntityStream.of(Article.class);
+ * try {
+ *     for (Article article : articles) {
+ *         export(article);
+ *     }
+ * } finally {
+ *     articles.close();
+ * }
+ * </pre>
+ * On MySQL, set the fetch size to -2147483648 to stream the rows instead of loading them in the driver.
+ */
+public class EntityStream<T> implements Iterator<T>, Iterable<T> {
+
+    private String databaseName;
+    private Session session;
+    private Transaction transaction;
+    private ScrollableResults results;
+    private int clearEvery;
+
+    private long count = 0;
+    private Boolean hasNext = null;
+    private boolean closed = false;
+
+    EntityStream(String databaseName, EntityManagerFactory entityManagerFactory, ReplicaRoutingDataSource replicaRouting, String query, Object... params) {
+        this.databaseName = databaseName;
+        int fetchSize = Integer.parseInt(new DataSourceConfiguration(databaseName).getOrElse("fetchSize", "100"));
+        this.clearEvery = fetchSize > 0 ? fetchSize : 100;
+
+        session = ((HibernateEntityManagerFactory) entityManagerFactory).getSessionFactory().openSession();
+        try {
+            session.setDefaultReadOnly(true);
+            session.setFlushMode(FlushMode.MANUAL);
+            session.setCacheMode(CacheMode.IGNORE);
+            // Some drivers, like PostgreSQL's, use a cursor only outside of auto-commit
+            transaction = session.beginTransaction();
+
+            Query q = session.createQuery(query);
+            q.setFetchSize(fetchSize);
+            q.setReadOnly(true);
+            q.setCacheable(false);
+            if (params != null) {
+                for (int i = 0; i < params.length; i++) {
+                    q.setParameter(String.valueOf(i + 1), params[i]);
+                }
+            }
+            if (replicaRouting != null) {
+                replicaRouting.setReadOnly(true);
+            }
+            try {
+                results = q.scroll(ScrollMode.FORWARD_ONLY);
+            } finally {
+                if (replicaRouting != null) {
+                    replicaRouting.setReadOnly(false);
+                }
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw new JPAException("Cannot stream `" + query + "` on `" + databaseName + "`", e);
+        }
+    }
+
+    /**
+     * Streams all entities of a class, from the database of the class.
+     * On a sharded database, the shard key bound to the current thread selects the shard.
+     */
+    public static <T> EntityStream<T> of(Class<T> clazz) {
+        String databaseName = Shards.resolve(ModelEnhancer.getDatabaseName(clazz));
+        return DatastoreRegistry.current().get(databaseName).stream("from " + clazz.getName());
+    }
+
+    public Iterator<T> iterator() {
+        return this;
+    }
+
+    public boolean hasNext() {
+        if (hasNext == null) {
+            if (closed) {
+                return false;
+            }
+            if (count > 0 && count % clearEvery == 0) {
+                // Entities read so far are not referenced by the caller anymore
+                session.clear();
+            }
+            hasNext = results.next();
+            if (!hasNext) {
+                close();
+            }
+        }
+        return hasNext;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        hasNext = null;
+        count++;
+        Object[] row = results.get();
+        return (T) (row.length == 1 ? row[0] : row);
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("EntityStream is read-only");
+    }
+
+    /**
+     * @return the number of rows read so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Releases the cursor and the connection. Does nothing if already closed.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (results != null) {
+                results.close();
+            }
+            if (transaction != null && transaction.isActive()) {
+                transaction.rollback();
+            }
+        } catch (RuntimeException e) {
+            Logger.warn("Cannot close a stream of `%s`: %s", databaseName, e.getMessage());
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package play.modules.multijpa;
+
+import play.Play;
+import play.exceptions.JPAException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs independent units of work against several databases concurrently, and joins them.<br />
+ * <br />
+ * Each work runs on the executor of its database, in its own EntityManager and transaction, see DatastoreExecutor.
+ * The latency of the whole is the one of the slowest database, not the sum of all.
+ * <pre>
+ * FanOut fanOut = new FanOut();
+ * Future&lt;List&gt; articles = fanOut.add("default", recentArticles);
+ * Future&lt;List&gt; comments = fanOut.add("mysql", recentComments);
+ * fanOut.join();
+ * render(articles.get(), comments.get());
+ * </pre>
+ * Entities returned by a work are detached, as its EntityManager is closed when it ends.
+ */
+public class FanOut {
+
+    private List<Future<?>> futures = new ArrayList<Future<?>>();
+    private List<String> databaseNames = new ArrayList<String>();
+    private long timeout;
+
+    /**
+     * A fan-out bounded by <code>jpa.fanOut.timeout</code> milliseconds (30000 by default).
+     */
+    public FanOut() {
+        this(Long.parseLong(Play.configuration.getProperty("jpa.fanOut.timeout", "30000")), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param timeout how long join() waits for the works, also the timeout of the statements of each work
+     */
+    public FanOut(long timeout, TimeUnit unit) {
+        this.timeout = unit.toMillis(timeout);
+    }
+
+    /**
+     * Starts a work on a database.
+     * @param databaseName a logical database name, resolved with the shard key of the current thread if sharded
+     * @return the result of the work, available once join() returned
+     */
+    public <T> Future<T> add(String databaseName, DatastoreExecutor.Work<T> work) {
+        Future<T> future;
+        try {
+            // Rounded up, a statement timeout is in seconds
+            future = DatastoreExecutor.submit(databaseName, work, (int) Math.max(1, (timeout + 999) / 1000));
+        } catch (RuntimeException e) {
+            cancel();
+            throw e;
+        }
+        futures.add(future);
+        databaseNames.add(databaseName);
+        return future;
+    }
+
+    /**
+     * Waits for all works to end, for at most the timeout of this fan-out.
+     * @throws JPAException if a work failed or did not end in time, after cancelling the others
+     */
+    public void join() {
+        join(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits for all works to end.
+     * @throws JPAException if a work failed or did not end in time, after cancelling the others
+     */
+    public void join(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new JPAException("Interrupted while querying `" + databaseNames.get(i) + "`", e);
+            } catch (TimeoutException e) {
+                cancel();
+                throw new JPAException("Timeout while querying `" + databaseNames.get(i) + "`", e);
+            } catch (ExecutionException e) {
+                cancel();
+                throw new JPAException("Cannot query `" + databaseNames.get(i) + "`", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Cancels the works which did not start yet.<br />
+     * Running works are not interrupted, as an interrupt in the middle of a JDBC call can leave the connection unusable:
+     * they end by themselves, at the latest when their statements time out, which rolls back their transactions.
+     */
+    public void cancel() {
+        for (Future<?> future : futures) {
+            future.cancel(false);
+        }
+    }
+}
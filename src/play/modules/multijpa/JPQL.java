@@ -1,28 +1,130 @@
 package play.modules.multijpa;
 
+import play.Play;
+import play.db.jpa.GenericModel.JPAQuery;
+import play.exceptions.UnexpectedException;
+
 import javax.persistence.EntityManager;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Modified version of play.db.jpa.JPQL which has the ability to controll multiple databases.
  */
 public class JPQL extends play.db.jpa.JPQL {
-    private static Map<String, JPQL> instances = new HashMap<String, JPQL>();
+    private static ConcurrentMap<String, JPQL> instances = new ConcurrentHashMap<String, JPQL>();
 
     private String databaseName = null;
 
+    /**
+     * The way to the EntityManager of the database, so that em() does not look it up each time.
+     */
+    private volatile DatastoreRegistry.Route route;
+
     @Override
     public EntityManager em() {
-        return DatastoreRegistry.getCurrentEntityManager(databaseName);
+        DatastoreRegistry.Route r = route;
+        if (r == null || !r.isCurrent()) {
+            // First use, or the classes were scanned again
+            r = DatastoreRegistry.route(databaseName);
+            route = r;
+        }
+        return r.getEntityManager();
     }
 
     public JPQL(String databaseName) {
         this.databaseName = databaseName;
     }
 
+    @Override
+    public JPAQuery find(String entity, String query, Object... params) {
+        String q = createFindByQuery(entity, entity, query, params);
+        return new KeysetQuery(this, entity, q, bindParameters(em().createQuery(q), params), params);
+    }
+
+    @Override
+    public JPAQuery find(String entity) {
+        String q = createFindByQuery(entity, entity, null, (Object[]) null);
+        return new KeysetQuery(this, entity, q, em().createQuery(q), null);
+    }
+
+    @Override
+    public JPAQuery all(String entity) {
+        return find(entity);
+    }
+
+    @Override
+    public int delete(String entity, String query, Object... params) {
+        int deleted = super.delete(entity, query, params);
+        changed(entity);
+        return deleted;
+    }
+
+    @Override
+    public int deleteAll(String entity) {
+        int deleted = super.deleteAll(entity);
+        changed(entity);
+        return deleted;
+    }
+
+    /**
+     * Bulk deletes bypass the interceptor, the changed type is recorded here, see RelationChoices.
+     */
+    private void changed(String entity) {
+        try {
+            DatastoreRegistry.changed(Shards.resolve(databaseName), Play.classloader.loadClass(entity));
+        } catch (ClassNotFoundException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    @Override
+    public String createFindByQuery(String entityName, String entityClass, String query, Object... params) {
+        String shape = shape("find", entityName, query, params);
+        String result = getQueryCache().getQuery(shape);
+        if (result == null) {
+            result = super.createFindByQuery(entityName, entityClass, query, params);
+            getQueryCache().putQuery(shape, result);
+        }
+        return result;
+    }
+
+    @Override
+    public String createCountQuery(String entityName, String entityClass, String query, Object... params) {
+        String shape = shape("count", entityName, query, params);
+        String result = getQueryCache().getQuery(shape);
+        if (result == null) {
+            result = super.createCountQuery(entityName, entityClass, query, params);
+            getQueryCache().putQuery(shape, result);
+        }
+        return result;
+    }
+
+    @Override
+    public String createDeleteQuery(String entityName, String entityClass, String query, Object... params) {
+        String shape = shape("delete", entityName, query, params);
+        String result = getQueryCache().getQuery(shape);
+        if (result == null) {
+            result = super.createDeleteQuery(entityName, entityClass, query, params);
+            getQueryCache().putQuery(shape, result);
+        }
+        return result;
+    }
+
+    private QueryCache getQueryCache() {
+        return QueryCache.get(databaseName);
+    }
+
+    /**
+     * The rewritten query depends on the parameters only through whether there are none, one, or more.
+     */
+    private static String shape(String kind, String entityName, String query, Object[] params) {
+        int arity = params == null ? -1 : Math.min(params.length, 2);
+        return kind + "|" + entityName + "|" + arity + "|" + query;
+    }
+
     /**
-     * Returns a JPQL instance dedicated for the current thread.
+     * Returns the JPQL instance of the default database.
      *
      * @return An instance of JPQL, not null.
      */
@@ -31,8 +133,8 @@ public class JPQL extends play.db.jpa.JPQL {
     }
 
     /**
-     * Returns a JPQL instance for a specific database.<br />
-     * The JPQL instance is dedicated for the current thread.
+     * Returns the JPQL instance of a database, shared by all threads.<br />
+     * Enhanced entities keep it in a static field, see ModelEnhancer.
      *
      * @param databaseName The name of a database defined in application.conf.
      * @return An instance of JPQL, not null.
@@ -42,6 +144,10 @@ public class JPQL extends play.db.jpa.JPQL {
 
         if (instance == null) {
             instance = new JPQL(databaseName);
+            JPQL previous = instances.putIfAbsent(databaseName, instance);
+            if (previous != null) {
+                return previous;
+            }
         }
         return instance;
     }
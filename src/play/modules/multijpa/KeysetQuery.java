@@ -0,0 +1,161 @@
+package play.modules.multijpa;
+
+import play.db.jpa.GenericModel;
+import play.exceptions.JPAException;
+
+import javax.persistence.Query;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * JPAQuery returned by the enhanced find() and all() finders, which can also seek to the page following an entity.<br />
+ * <br />
+ * fetch(page, length) skips the rows of the previous pages, so deep pages are slow on large tables.
+ * fetchAfter() adds a condition on the sort property and the key instead, and its cost does not depend on the depth:
+ * <pre>
+ * List&lt;Article&gt; next = ((KeysetQuery) Article.find("byAuthor", author)).fetchAfter("postedAt", "DESC", last.postedAt, last.id, 20);
+ * </pre>
+ * Queries given a condition, an order by or nothing can seek: the condition is kept, and the order by replaced.
+ * Full <code>from</code> and <code>select</code> queries cannot.
+ */
+public class KeysetQuery extends GenericModel.JPAQuery {
+
+    private static final Pattern ORDER_BY = Pattern.compile("order\\s+by\\s", Pattern.CASE_INSENSITIVE);
+
+    private JPQL jpql;
+    private String entityName;
+    private Object[] params;
+
+    public KeysetQuery(JPQL jpql, String entityName, String sq, Query query, Object[] params) {
+        super(sq, query);
+        this.jpql = jpql;
+        this.entityName = entityName;
+        this.params = params;
+    }
+
+    /**
+     * Fetches the entities following the last one of the previous page, ordered by orderBy then by key.
+     *
+     * @param orderBy a property of the entity
+     * @param order ASC or DESC
+     * @param lastValue the orderBy value of the last entity of the previous page, not null unless orderBy is the key
+     * @param lastKey the key of the last entity of the previous page, or null for the first page
+     * @param length the maximum number of entities
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> fetchAfter(String orderBy, String order, Object lastValue, Object lastKey, int length) {
+        ModelMetadata metadata = ModelMetadata.get(entityName);
+        if (!metadata.isSortable(orderBy)) {
+            throw new JPAException("Cannot order " + entityName + " by `" + orderBy + "`, it is not a property");
+        }
+        String keyName = metadata.getKeyField().getName();
+        checkSeek(orderBy, keyName, lastValue, lastKey);
+        boolean descending = "DESC".equalsIgnoreCase(order);
+        String direction = descending ? " DESC" : " ASC";
+
+        String shape = "seek|" + entityName + "|" + sq + "|" + orderBy + direction + (lastKey != null ? "|after" : "");
+        QueryCache cache = QueryCache.get(metadata.getDatabaseName());
+        String q = cache.getQuery(shape);
+        if (q == null) {
+            q = seekQuery(orderBy, keyName, descending, lastKey != null) + " order by " + orderBy + direction
+                    + (orderBy.equals(keyName) ? "" : ", " + keyName + direction);
+            cache.putQuery(shape, q);
+        }
+        Query seek = jpql.bindParameters(jpql.em().createQuery(q), params);
+        if (lastKey != null) {
+            bindSeek(seek, orderBy, keyName, lastValue, lastKey);
+        }
+        seek.setMaxResults(length);
+        return seek.getResultList();
+    }
+
+    /**
+     * @return the query of the entity with the condition of this query, restricted to the entities after the last one
+     */
+    private String seekQuery(String orderBy, String keyName, boolean descending, boolean after) {
+        StringBuilder q = new StringBuilder("from ").append(entityName);
+        String condition = getCondition();
+        if (condition != null) {
+            q.append(" where (").append(condition).append(')');
+        }
+        if (after) {
+            q.append(condition != null ? " and " : " where ").append(seekCondition(orderBy, keyName, descending));
+        }
+        return q.toString();
+    }
+
+    /**
+     * Takes this query apart as JPQL.createFindByQuery() built it: <code>from</code> the entity,
+     * then <code>where</code> a condition and <code>order by</code> properties, both optional.
+     * @return the condition, or null if there is none
+     */
+    private String getCondition() {
+        String from = "from " + entityName;
+        if (sq.equals(from)) {
+            return null;
+        }
+        String clauses = sq.startsWith(from + " ") ? sq.substring(from.length() + 1) : "";
+        if (ORDER_BY.matcher(clauses).lookingAt()) {
+            return null;
+        }
+        if (!clauses.startsWith("where ")) {
+            throw new JPAException("Cannot seek in `" + sq + "`, only queries given a condition or an order by can");
+        }
+        String condition = clauses.substring("where ".length());
+        int orderBy = indexOfOrderBy(condition);
+        return orderBy >= 0 ? condition.substring(0, orderBy).trim() : condition;
+    }
+
+    /**
+     * @return the index of the order by clause ending a condition, outside of its subqueries and string literals, or -1
+     */
+    static int indexOfOrderBy(String condition) {
+        int depth = 0;
+        boolean literal = false;
+        for (int i = 0; i < condition.length(); i++) {
+            char c = condition.charAt(i);
+            if (c == '\'') {
+                // An escaped quote '' closes and opens the literal again
+                literal = !literal;
+            } else if (literal) {
+                continue;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0 && (c == 'o' || c == 'O') && i > 0 && Character.isWhitespace(condition.charAt(i - 1))
+                    && ORDER_BY.matcher(condition).region(i, condition.length()).lookingAt()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @throws IllegalArgumentException if lastValue is null while seeking after an entity ordered by another property than the key:
+     * nothing compares greater or lower than null
+     */
+    static void checkSeek(String orderBy, String keyName, Object lastValue, Object lastKey) {
+        if (lastKey != null && lastValue == null && !orderBy.equals(keyName)) {
+            throw new IllegalArgumentException("Cannot seek after a null value of `" + orderBy + "`, the last value must not be null");
+        }
+    }
+
+    /**
+     * Expands <code>(orderBy, key) &gt; (:lastValue, :lastKey)</code>, which HQL cannot express with row values.
+     */
+    static String seekCondition(String orderBy, String keyName, boolean descending) {
+        String after = descending ? " < " : " > ";
+        if (orderBy.equals(keyName)) {
+            return keyName + after + ":lastKey";
+        }
+        return "(" + orderBy + after + ":lastValue or (" + orderBy + " = :lastValue and " + keyName + after + ":lastKey))";
+    }
+
+    static void bindSeek(Query query, String orderBy, String keyName, Object lastValue, Object lastKey) {
+        if (!orderBy.equals(keyName)) {
+            query.setParameter("lastValue", lastValue);
+        }
+        query.setParameter("lastKey", lastKey);
+    }
+}
@@ -0,0 +1,268 @@
+package play.modules.multijpa;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+
+/**
+ * DataSource returning Connections which borrow a real Connection from the pool only when a statement is created.<br />
+ * <br />
+ * Hibernate gets a Connection when a transaction begins, even if no query is run afterwards.
+ * With this DataSource, a transaction which never reaches the database never occupies a pooled connection:
+ * auto-commit, read-only and isolation settings are remembered and applied when the real Connection is borrowed,
+ * and commit, rollback and close are no-ops until then.
+ */
+public class LazyConnectionDataSource implements DataSource {
+
+    private DataSource target;
+
+    /**
+     * Times the borrowed connections and the statements, null when metrics are disabled.
+     */
+    private DatastoreMetrics metrics;
+
+    public LazyConnectionDataSource(DataSource target) {
+        this(target, null);
+    }
+
+    public LazyConnectionDataSource(DataSource target, DatastoreMetrics metrics) {
+        this.target = target;
+        this.metrics = metrics;
+    }
+
+    public DataSource getTarget() {
+        return target;
+    }
+
+    public Connection getConnection() throws SQLException {
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class[]{Connection.class},
+                new LazyConnectionHandler(target, metrics, null, null));
+    }
+
+    public Connection getConnection(String username, String password) throws SQLException {
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class[]{Connection.class},
+                new LazyConnectionHandler(target, metrics, username, password));
+    }
+
+    /**
+     * @param connection a Connection of a LazyConnectionDataSource
+     * @return the Connection it borrowed from the pool, or null if it did not borrow one yet
+     */
+    public static Connection getBorrowed(Connection connection) {
+        if (connection == null || !Proxy.isProxyClass(connection.getClass())) {
+            return null;
+        }
+        InvocationHandler handler = Proxy.getInvocationHandler(connection);
+        return handler instanceof LazyConnectionHandler ? ((LazyConnectionHandler) handler).connection : null;
+    }
+
+    public PrintWriter getLogWriter() throws SQLException {
+        return target.getLogWriter();
+    }
+
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        target.setLogWriter(out);
+    }
+
+    public void setLoginTimeout(int seconds) throws SQLException {
+        target.setLoginTimeout(seconds);
+    }
+
+    public int getLoginTimeout() throws SQLException {
+        return target.getLoginTimeout();
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return target.unwrap(iface);
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || target.isWrapperFor(iface);
+    }
+
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    private static class LazyConnectionHandler implements InvocationHandler {
+
+        private DataSource target;
+        private DatastoreMetrics metrics;
+        private String username;
+        private String password;
+
+        private Connection connection = null;
+        private boolean closed = false;
+
+        private boolean autoCommit = true;
+        private boolean readOnly = false;
+        private Integer transactionIsolation = null;
+
+        LazyConnectionHandler(DataSource target, DatastoreMetrics metrics, String username, String password) {
+            this.target = target;
+            this.metrics = metrics;
+            this.username = username;
+            this.password = password;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "Lazy connection" + (connection != null ? " to " + connection : " (not borrowed yet)");
+            }
+
+            if (connection == null) {
+                if (name.equals("isClosed")) {
+                    return closed;
+                } else if (name.equals("close")) {
+                    closed = true;
+                    return null;
+                }
+                if (closed) {
+                    throw new SQLException("Connection is closed");
+                }
+                if (name.equals("setAutoCommit")) {
+                    autoCommit = (Boolean) args[0];
+                    return null;
+                } else if (name.equals("getAutoCommit")) {
+                    return autoCommit;
+                } else if (name.equals("setReadOnly")) {
+                    readOnly = (Boolean) args[0];
+                    return null;
+                } else if (name.equals("isReadOnly")) {
+                    return readOnly;
+                } else if (name.equals("setTransactionIsolation")) {
+                    transactionIsolation = (Integer) args[0];
+                    return null;
+                } else if (name.equals("getTransactionIsolation") && transactionIsolation != null) {
+                    return transactionIsolation;
+                } else if (name.equals("commit") || name.equals("rollback") || name.equals("clearWarnings")) {
+                    // Nothing was sent to the database
+                    return null;
+                } else if (name.equals("getWarnings")) {
+                    return null;
+                }
+                connection = borrow();
+            }
+
+            if (name.equals("close")) {
+                closed = true;
+                release();
+                return null;
+            } else if (name.equals("setReadOnly")) {
+                readOnly = (Boolean) args[0];
+            }
+            Object result;
+            try {
+                result = method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+            if (metrics != null && result instanceof Statement) {
+                result = TimedStatementHandler.wrap((Statement) result, name.equals("createStatement") ? null : (String) args[0], metrics);
+            }
+            return result;
+        }
+
+        private Connection borrow() throws SQLException {
+            long start = System.nanoTime();
+            Connection c = username != null ? target.getConnection(username, password) : target.getConnection();
+            if (metrics != null) {
+                metrics.connectionBorrowed(System.nanoTime() - start);
+            }
+            try {
+                if (transactionIsolation != null) {
+                    c.setTransactionIsolation(transactionIsolation);
+                }
+                if (readOnly) {
+                    c.setReadOnly(true);
+                }
+                if (c.getAutoCommit() != autoCommit) {
+                    c.setAutoCommit(autoCommit);
+                }
+            } catch (SQLException e) {
+                c.close();
+                throw e;
+            }
+            return c;
+        }
+
+        private void release() throws SQLException {
+            try {
+                if (readOnly) {
+                    // Do not give a read-only connection back to the pool
+                    connection.setReadOnly(false);
+                }
+            } finally {
+                connection.close();
+                connection = null;
+            }
+        }
+    }
+
+    /**
+     * Times the executions of a statement.
+     */
+    private static class TimedStatementHandler implements InvocationHandler {
+
+        private Statement statement;
+        private String sql;
+        private DatastoreMetrics metrics;
+
+        private TimedStatementHandler(Statement statement, String sql, DatastoreMetrics metrics) {
+            this.statement = statement;
+            this.sql = sql;
+            this.metrics = metrics;
+        }
+
+        static Statement wrap(Statement statement, String sql, DatastoreMetrics metrics) {
+            Class<?> type = statement instanceof CallableStatement ? CallableStatement.class
+                    : statement instanceof PreparedStatement ? PreparedStatement.class
+                    : Statement.class;
+            return (Statement) Proxy.newProxyInstance(
+                    Statement.class.getClassLoader(),
+                    new Class[]{type},
+                    new TimedStatementHandler(statement, sql, metrics));
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!method.getName().startsWith("execute")) {
+                try {
+                    return method.invoke(statement, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getTargetException();
+                }
+            }
+            long start = System.nanoTime();
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            } finally {
+                String executed = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : sql;
+                metrics.queryExecuted(executed, System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -2,18 +2,48 @@ package play.modules.multijpa;
 
 import javassist.CannotCompileException;
 import javassist.CtClass;
+import javassist.CtField;
 import javassist.CtMethod;
+import javassist.Modifier;
+import javassist.NotFoundException;
 import javassist.bytecode.AnnotationsAttribute;
+import javassist.expr.ExprEditor;
+import javassist.expr.FieldAccess;
 import play.classloading.ApplicationClasses.ApplicationClass;
 import play.classloading.enhancers.Enhancer;
 
 import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Enhance JPABase entities classes
  */
 public class ModelEnhancer extends Enhancer {
 
+    /**
+     * Name of the static field holding the JPQL of the database of an enhanced entity.
+     */
+    static final String JPQL_FIELD = "_multijpaJPQL";
+
+    /**
+     * Name of the field holding the written fields of an entity, see DirtyTracking.
+     */
+    static final String DIRTY_FIELD = "_multijpaDirty";
+
+    /**
+     * Superclasses of the entities whose persistent fields are all declared in the entity itself.
+     */
+    private static final List<String> TRACKABLE_SUPERCLASSES = Arrays.asList("play.db.jpa.Model", "play.db.jpa.GenericModel", "play.db.jpa.JPABase");
+
+    /**
+     * Database names of the classes, read from &#64;Database once.
+     */
+    private static ConcurrentMap<Class, String> databaseNames = new ConcurrentHashMap<Class, String>();
+
     /**
      * Find annotation named <code>annotationName</code>
      * @param ctClass
@@ -51,14 +81,21 @@ public class ModelEnhancer extends Enhancer {
     }
 
     public static <T> String getDatabaseName(Class<T> clazz) {
-        Database database = clazz.getAnnotation(Database.class);
-        String databaseName;
+        String databaseName = databaseNames.get(clazz);
 
-        if (database != null && (databaseName = database.value()) != null) {
-            return databaseName;
-        } else {
-            return "default";
+        if (databaseName == null) {
+            Database database = clazz.getAnnotation(Database.class);
+            databaseName = database != null && database.value() != null ? database.value() : "default";
+            databaseNames.put(clazz, databaseName);
         }
+        return databaseName;
+    }
+
+    /**
+     * Forget the database names of the classes, called when Play reloads the application classes.
+     */
+    public static void clearDatabaseNames() {
+        databaseNames.clear();
     }
 
     public static String getDatabaseName(CtClass ctClass) {
@@ -73,11 +110,79 @@ public class ModelEnhancer extends Enhancer {
         return databaseName;
     }
 
-    private void makeAndAddGetJQPLMethod(CtClass ctClass) throws CannotCompileException {
-        String argument = getDatabaseName(ctClass);
+    private static boolean isAnnotated(CtField ctField, String annotationName) {
+        AnnotationsAttribute attribute = (AnnotationsAttribute) ctField.getFieldInfo().getAttribute(AnnotationsAttribute.visibleTag);
+        return attribute != null && attribute.getAnnotation(annotationName) != null;
+    }
 
-        CtMethod getJPQL = CtMethod.make("public static play.modules.multijpa.JPQL getJQPL() { return play.modules.multijpa.JPQL.getInstance(" + argument + "); }", ctClass);
-        ctClass.addMethod(getJPQL);
+    private static boolean isAnnotated(CtMethod ctMethod, String annotationName) {
+        AnnotationsAttribute attribute = (AnnotationsAttribute) ctMethod.getMethodInfo().getAttribute(AnnotationsAttribute.visibleTag);
+        return attribute != null && attribute.getAnnotation(annotationName) != null;
+    }
+
+    /**
+     * @return the persistent fields of an entity whose writes can be tracked, or null if its state can not be tracked
+     */
+    private List<String> getTrackedFields(CtClass ctClass) throws NotFoundException {
+        if (!TRACKABLE_SUPERCLASSES.contains(ctClass.getSuperclass().getName()) || hasAnnotation(ctClass, "javax.persistence.Access")) {
+            return null;
+        }
+        for (CtMethod ctMethod : ctClass.getDeclaredMethods()) {
+            if (isAnnotated(ctMethod, "javax.persistence.Id") || isAnnotated(ctMethod, "javax.persistence.EmbeddedId")) {
+                // Property access: Hibernate loads entities through their setters
+                return null;
+            }
+        }
+        List<String> fields = new ArrayList<String>();
+        for (CtField ctField : ctClass.getDeclaredFields()) {
+            int modifiers = ctField.getModifiers();
+            if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || isAnnotated(ctField, "javax.persistence.Transient")) {
+                continue;
+            }
+            if (isAnnotated(ctField, "javax.persistence.Embedded") || isAnnotated(ctField, "javax.persistence.EmbeddedId")) {
+                // Components are changed in place, DirtyTracking lets Hibernate compare the whole entity
+                continue;
+            }
+            CtClass type = ctField.getType();
+            if (!type.isPrimitive() && !type.isArray() && hasAnnotation(type, "javax.persistence.Embeddable")) {
+                continue;
+            }
+            fields.add(ctField.getName());
+        }
+        return fields.isEmpty() || fields.size() > 64 ? null : fields;
+    }
+
+    /**
+     * Records the writes to the persistent fields of an entity in a bit set, see DirtyTracking.<br />
+     * Writes from other classes go through the accessors Play! generates before the plugins enhance the class.
+     */
+    private void enhanceDirtyTracking(CtClass ctClass) throws Exception {
+        final List<String> fields = getTrackedFields(ctClass);
+        if (fields == null) {
+            return;
+        }
+        final String className = ctClass.getName();
+
+        ctClass.instrument(new ExprEditor() {
+            @Override
+            public void edit(FieldAccess f) throws CannotCompileException {
+                int bit = fields.indexOf(f.getFieldName());
+                if (f.isWriter() && !f.isStatic() && bit >= 0 && f.getClassName().equals(className)) {
+                    f.replace("{ $proceed($$); $0." + DIRTY_FIELD + " = $0." + DIRTY_FIELD + " | (1L << " + bit + "); }");
+                }
+            }
+        });
+
+        ctClass.addInterface(classPool.get("play.modules.multijpa.DirtyTracked"));
+        ctClass.addField(CtField.make("private transient long " + DIRTY_FIELD + ";", ctClass));
+
+        StringBuilder names = new StringBuilder();
+        for (String field : fields) {
+            names.append(names.length() > 0 ? "," : "").append(field);
+        }
+        ctClass.addMethod(CtMethod.make("public String _multijpaGetTrackedFields() { return \"" + names + "\"; }", ctClass));
+        ctClass.addMethod(CtMethod.make("public long _multijpaGetDirty() { return " + DIRTY_FIELD + "; }", ctClass));
+        ctClass.addMethod(CtMethod.make("public void _multijpaSetDirty(long dirty) { " + DIRTY_FIELD + " = dirty; }", ctClass));
     }
 
     public void enhanceThisClass(ApplicationClass applicationClass) throws Exception {
@@ -94,9 +199,10 @@ public class ModelEnhancer extends Enhancer {
 
         String entityName = ctClass.getName();
 
-        //makeAndAddGetJQPLMethod(ctClass);
-
-        String jpql = "play.modules.multijpa.JPQL.getInstance(\"" + getDatabaseName(ctClass) + "\")";
+        // The JPQL of the database is resolved once, when the class is initialized
+        CtField jpqlField = CtField.make("private static final play.modules.multijpa.JPQL " + JPQL_FIELD + ";", ctClass);
+        ctClass.addField(jpqlField, CtField.Initializer.byExpr("play.modules.multijpa.JPQL.getInstance(\"" + getDatabaseName(ctClass) + "\")"));
+        String jpql = JPQL_FIELD;
 
         // count
         CtMethod count = CtMethod.make("public static long count() { return " + jpql + ".count(\"" + entityName + "\"); }", ctClass);
@@ -146,6 +252,10 @@ public class ModelEnhancer extends Enhancer {
         CtMethod create = CtMethod.make("public static play.db.jpa.JPABase create(String name, play.mvc.Scope.Params params) { return " + jpql + ".create(\"" + entityName + "\", name, params); }", ctClass);
         ctClass.addMethod(create);
 
+        if (new DataSourceConfiguration(getDatabaseName(ctClass)).getOrElse("dirtyTracking", "false").equals("true")) {
+            enhanceDirtyTracking(ctClass);
+        }
+
         // Done.
         applicationClass.enhancedByteCode = ctClass.toBytecode();
         ctClass.defrost();
@@ -2,11 +2,11 @@ package play.modules.multijpa;
 
 import play.data.binding.Binder;
 import play.db.Model;
+import play.exceptions.JPAException;
 import play.exceptions.UnexpectedException;
 
 import javax.persistence.*;
 import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.util.*;
 
@@ -18,107 +18,153 @@ public class ModelLoader implements Model.Factory {
         this.clazz = clazz;
     }
 
-    private String getDatabaseName() {
-        Database database = clazz.getAnnotation(Database.class);
+    private ModelMetadata metadata() {
+        return ModelMetadata.get(clazz);
+    }
 
-        if (database != null) {
-            return database.value();
-        } else {
-            return "default";
-        }
+    private String getDatabaseName() {
+        return metadata().getDatabaseName();
     }
 
     private EntityManager em() {
         return DatastoreRegistry.getCurrentEntityManager(getDatabaseName());
     }
 
+    private Datastore datastore() {
+        return DatastoreRegistry.current().get(Shards.resolve(getDatabaseName()));
+    }
+
     public Model findById(Object id) {
         if (id == null) {
             return null;
         }
         try {
-            return em().find(clazz, Binder.directBind(id.toString(), Model.Manager.factoryFor(clazz).keyType()));
+            return em().find(clazz, Binder.directBind(id.toString(), keyType()));
         } catch (Exception e) {
             // Key is invalid, thus nothing was found
             return null;
         }
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Model.Factory contract, used by the CRUD module.<br />
+     * orderBy must name a property of the entity, otherwise the key is used.
+     * where is trusted application code and is inserted in the query as is, prefer fetchFiltered().
+     */
     public List<Model> fetch(int offset, int size, String orderBy, String order, List<String> searchFields, String keywords, String where) {
-        String q = "from " + clazz.getName();
-        if (keywords != null && !keywords.equals("")) {
-            String searchQuery = getSearchQuery(searchFields);
-            if (!searchQuery.equals("")) {
-                q += " where (" + searchQuery + ")";
-            }
-            q += (where != null ? " and " + where : "");
-        } else {
-            q += (where != null ? " where " + where : "");
+        return fetch(offset, size, orderBy, order, searchFields, keywords, where, null, null);
+    }
+
+    /**
+     * Fetches a page of entities with a query whose shape only depends on property names, never on values.
+     *
+     * @param orderBy a property of the entity, or null for the key
+     * @param order ASC or DESC, ASC otherwise
+     * @param searchFields searchable properties matched against the keywords, all of them if null or empty
+     * @param keywords may be null
+     * @param filters property names and the values they must be equal to, bound as parameters; may be null
+     * @return the entities
+     */
+    public List<Model> fetchFiltered(int offset, int size, String orderBy, String order, List<String> searchFields, String keywords, Map<String, Object> filters) {
+        return fetch(offset, size, orderBy, order, searchFields, keywords, null, filters, null);
+    }
+
+    /**
+     * Fetches the page following an entity, seeking to it instead of skipping the rows before it.<br />
+     * The cost of a page does not grow with its depth, provided that an index covers orderBy and the key.
+     * Entities are ordered by orderBy, then by key.
+     * <pre>
+     * List&lt;Model&gt; page = loader.fetchAfter(20, "postedAt", "DESC", last.postedAt, last.id, null, null, null);
+     * </pre>
+     *
+     * @param lastValue the orderBy value of the last entity of the previous page, not null unless orderBy is the key
+     * @param lastKey the key of the last entity of the previous page, or null for the first page
+     * @throws IllegalArgumentException if lastValue is null while lastKey is not
+     * @see #fetchFiltered
+     */
+    public List<Model> fetchAfter(int size, String orderBy, String order, Object lastValue, Object lastKey, List<String> searchFields, String keywords, Map<String, Object> filters) {
+        return fetch(0, size, orderBy, order, searchFields, keywords, null, filters, lastKey != null ? new Object[]{lastValue, lastKey} : null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Model> fetch(int offset, int size, String orderBy, String order, List<String> searchFields, String keywords, String where, Map<String, Object> filters, Object[] after) {
+        ModelMetadata metadata = metadata();
+        String keyName = keyName();
+        if (orderBy == null || !metadata.isSortable(orderBy)) {
+            orderBy = keyName;
         }
-        if (orderBy == null && order == null) {
-            orderBy = "id";
+        if (order == null || (!order.equals("ASC") && !order.equals("DESC"))) {
             order = "ASC";
         }
-        if (orderBy == null && order != null) {
-            orderBy = "id";
+        if (after != null) {
+            KeysetQuery.checkSeek(orderBy, keyName, after[0], after[1]);
         }
-        if (order == null || (!order.equals("ASC") && !order.equals("DESC"))) {
-            order = "ASC";
+        Filter filter = new Filter(metadata, searchFields, keywords, where, filters);
+        String shape = "fetch|" + clazz.getName() + "|" + filter.shape() + "|" + orderBy + "|" + order + (after != null ? "|after" : "");
+        QueryCache cache = QueryCache.get(getDatabaseName());
+        String q = cache.getQuery(shape);
+        if (q == null) {
+            StringBuilder sb = new StringBuilder("from ").append(clazz.getName());
+            String separator = filter.appendWhere(sb);
+            if (after != null) {
+                sb.append(separator).append(KeysetQuery.seekCondition(orderBy, keyName, order.equals("DESC")));
+            }
+            sb.append(" order by ").append(orderBy).append(" ").append(order);
+            if (!orderBy.equals(keyName)) {
+                sb.append(", ").append(keyName).append(" ").append(order);
+            }
+            q = sb.toString();
+            cache.putQuery(shape, q);
         }
-        q += " order by " + orderBy + " " + order;
-        Query query = em().createQuery(q);
-        if (keywords != null && !keywords.equals("") && q.indexOf("?1") != -1) {
-            query.setParameter(1, "%" + keywords.toLowerCase() + "%");
+        Datastore.Reader reader = datastore().getReader();
+        Query query = reader.entityManager.createQuery(q);
+        filter.bind(query);
+        if (after != null) {
+            KeysetQuery.bindSeek(query, orderBy, keyName, after[0], after[1]);
         }
         query.setFirstResult(offset);
         query.setMaxResults(size);
-        return query.getResultList();
+        return reader.list(query);
     }
 
+    /**
+     * Model.Factory contract, used by the CRUD module. See fetch(), where is inserted in the query as is.
+     */
     public Long count(List<String> searchFields, String keywords, String where) {
-        String q = "select count(e) from " + clazz.getName() + " e";
-        if (keywords != null && !keywords.equals("")) {
-            String searchQuery = getSearchQuery(searchFields);
-            if (!searchQuery.equals("")) {
-                q += " where (" + searchQuery + ")";
-            }
-            q += (where != null ? " and " + where : "");
-        } else {
-            q += (where != null ? " where " + where : "");
-        }
-        Query query = em().createQuery(q);
-        if (keywords != null && !keywords.equals("") && q.indexOf("?1") != -1) {
-            query.setParameter(1, "%" + keywords.toLowerCase() + "%");
+        return count(searchFields, keywords, where, null);
+    }
+
+    /**
+     * Counts the entities matching the keywords and filters, see fetchFiltered().
+     */
+    public Long countFiltered(List<String> searchFields, String keywords, Map<String, Object> filters) {
+        return count(searchFields, keywords, null, filters);
+    }
+
+    private Long count(List<String> searchFields, String keywords, String where, Map<String, Object> filters) {
+        Filter filter = new Filter(metadata(), searchFields, keywords, where, filters);
+        String shape = "count|" + clazz.getName() + "|" + filter.shape();
+        QueryCache cache = QueryCache.get(getDatabaseName());
+        String q = cache.getQuery(shape);
+        if (q == null) {
+            StringBuilder sb = new StringBuilder("select count(e) from ").append(clazz.getName()).append(" e");
+            filter.appendWhere(sb);
+            q = sb.toString();
+            cache.putQuery(shape, q);
         }
-        return Long.decode(query.getSingleResult().toString());
+        Datastore.Reader reader = datastore().getReader();
+        Query query = reader.entityManager.createQuery(q);
+        filter.bind(query);
+        return Long.decode(reader.single(query).toString());
     }
 
     public void deleteAll() {
         em().createQuery("delete from " + clazz.getName()).executeUpdate();
+        DatastoreRegistry.changed(Shards.resolve(getDatabaseName()), clazz);
     }
 
     public List<Model.Property> listProperties() {
-        List<Model.Property> properties = new ArrayList<Model.Property>();
-        Set<Field> fields = new LinkedHashSet<Field>();
-        Class<?> tclazz = clazz;
-        while (!tclazz.equals(Object.class)) {
-            Collections.addAll(fields, tclazz.getDeclaredFields());
-            tclazz = tclazz.getSuperclass();
-        }
-        for (Field f : fields) {
-            if (Modifier.isTransient(f.getModifiers())) {
-                continue;
-            }
-            if (f.isAnnotationPresent(Transient.class)) {
-                continue;
-            }
-            Model.Property mp = buildProperty(f);
-            if (mp != null) {
-                properties.add(mp);
-            }
-        }
-        return properties;
+        return metadata().getProperties();
     }
 
     public String keyName() {
@@ -130,43 +176,105 @@ public class ModelLoader implements Model.Factory {
     }
 
     public Object keyValue(Model m) {
-        try {
-            return keyField().get(m);
-        } catch (Exception ex) {
-            throw new UnexpectedException(ex);
-        }
+        return metadata().getKeyValue(m);
     }
 
     //
     Field keyField() {
-        Class c = clazz;
-        try {
-            while (!c.equals(Object.class)) {
-                for (Field field : c.getDeclaredFields()) {
-                    if (field.isAnnotationPresent(Id.class)) {
-                        field.setAccessible(true);
-                        return field;
+        return metadata().getKeyField();
+    }
+
+    /**
+     * @return the searchable properties among searchFields, all of them if searchFields is null or empty
+     */
+    private static List<String> getSearchProperties(ModelMetadata metadata, List<String> searchFields) {
+        if (searchFields == null || searchFields.isEmpty()) {
+            return metadata.getSearchableProperties();
+        }
+        List<String> properties = new ArrayList<String>();
+        for (String property : metadata.getSearchableProperties()) {
+            if (searchFields.contains(property)) {
+                properties.add(property);
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Where clause of fetch() and count(): keywords, filters and an optional trusted where clause.<br />
+     * Only validated property names go into the query, values are bound as parameters.
+     */
+    private static class Filter {
+
+        private List<String> searchProperties;
+        private String keywords;
+        private String where;
+        private SortedMap<String, Object> filters = new TreeMap<String, Object>();
+
+        Filter(ModelMetadata metadata, List<String> searchFields, String keywords, String where, Map<String, Object> filters) {
+            if (keywords != null && !keywords.equals("")) {
+                this.searchProperties = getSearchProperties(metadata, searchFields);
+                this.keywords = keywords;
+            } else {
+                this.searchProperties = Collections.emptyList();
+            }
+            this.where = where;
+            if (filters != null) {
+                for (Map.Entry<String, Object> entry : filters.entrySet()) {
+                    if (!metadata.isSortable(entry.getKey())) {
+                        throw new JPAException("Cannot filter " + metadata.getEntityName() + " by `" + entry.getKey() + "`, it is not a property");
                     }
+                    this.filters.put(entry.getKey(), entry.getValue());
                 }
-                c = c.getSuperclass();
             }
-        } catch (Exception e) {
-            throw new UnexpectedException("Error while determining the object @Id for an object of type " + clazz);
         }
-        throw new UnexpectedException("Cannot get the object @Id for an object of type " + clazz);
-    }
 
-    String getSearchQuery(List<String> searchFields) {
-        String q = "";
-        for (Model.Property property : listProperties()) {
-            if (property.isSearchable && (searchFields == null || searchFields.isEmpty() ? true : searchFields.contains(property.name))) {
-                if (!q.equals("")) {
-                    q += " or ";
+        /**
+         * @return everything the query string depends on
+         */
+        String shape() {
+            StringBuilder sb = new StringBuilder().append(searchProperties).append('|');
+            for (Map.Entry<String, Object> entry : filters.entrySet()) {
+                sb.append(entry.getKey()).append(entry.getValue() == null ? " null," : ",");
+            }
+            return sb.append('|').append(where).toString();
+        }
+
+        /**
+         * @return the separator of a condition appended after this where clause
+         */
+        String appendWhere(StringBuilder sb) {
+            String separator = " where ";
+            if (!searchProperties.isEmpty()) {
+                sb.append(separator).append('(');
+                for (int i = 0; i < searchProperties.size(); i++) {
+                    sb.append(i == 0 ? "" : " or ").append("lower(").append(searchProperties.get(i)).append(") like ?1");
+                }
+                sb.append(')');
+                separator = " and ";
+            }
+            for (Map.Entry<String, Object> entry : filters.entrySet()) {
+                sb.append(separator).append(entry.getKey());
+                sb.append(entry.getValue() == null ? " is null" : " = :" + entry.getKey());
+                separator = " and ";
+            }
+            if (where != null) {
+                sb.append(separator).append('(').append(where).append(')');
+                separator = " and ";
+            }
+            return separator;
+        }
+
+        void bind(Query query) {
+            if (!searchProperties.isEmpty()) {
+                query.setParameter(1, "%" + keywords.toLowerCase() + "%");
+            }
+            for (Map.Entry<String, Object> entry : filters.entrySet()) {
+                if (entry.getValue() != null) {
+                    query.setParameter(entry.getKey(), entry.getValue());
                 }
-                q += "lower(" + property.name + ") like ?1";
             }
         }
-        return q;
     }
 
     Model.Property buildProperty(final Field field) {
@@ -178,25 +286,13 @@ public class ModelLoader implements Model.Factory {
                 if (field.getAnnotation(OneToOne.class).mappedBy().equals("")) {
                     modelProperty.isRelation = true;
                     modelProperty.relationType = field.getType();
-                    modelProperty.choices = new Model.Choices() {
-
-                        @SuppressWarnings("unchecked")
-                        public List<Object> list() {
-                            return em().createQuery("from " + field.getType().getName()).getResultList();
-                        }
-                    };
+                    modelProperty.choices = new RelationChoices(field.getType());
                 }
             }
             if (field.isAnnotationPresent(ManyToOne.class)) {
                 modelProperty.isRelation = true;
                 modelProperty.relationType = field.getType();
-                modelProperty.choices = new Model.Choices() {
-
-                    @SuppressWarnings("unchecked")
-                    public List<Object> list() {
-                        return em().createQuery("from " + field.getType().getName()).getResultList();
-                    }
-                };
+                modelProperty.choices = new RelationChoices(field.getType());
             }
         }
         if (Collection.class.isAssignableFrom(field.getType())) {
@@ -206,13 +302,7 @@ public class ModelLoader implements Model.Factory {
                     modelProperty.isRelation = true;
                     modelProperty.isMultiple = true;
                     modelProperty.relationType = fieldType;
-                    modelProperty.choices = new Model.Choices() {
-
-                        @SuppressWarnings("unchecked")
-                        public List<Object> list() {
-                            return em().createQuery("from " + fieldType.getName()).getResultList();
-                        }
-                    };
+                    modelProperty.choices = new RelationChoices(fieldType);
                 }
             }
             if (field.isAnnotationPresent(ManyToMany.class)) {
@@ -220,13 +310,7 @@ public class ModelLoader implements Model.Factory {
                     modelProperty.isRelation = true;
                     modelProperty.isMultiple = true;
                     modelProperty.relationType = fieldType;
-                    modelProperty.choices = new Model.Choices() {
-
-                        @SuppressWarnings("unchecked")
-                        public List<Object> list() {
-                            return em().createQuery("from " + fieldType.getName()).getResultList();
-                        }
-                    };
+                    modelProperty.choices = new RelationChoices(fieldType);
                 }
             }
         }
@@ -0,0 +1,193 @@
+package play.modules.multijpa;
+
+import play.Play;
+import play.db.Model;
+import play.exceptions.UnexpectedException;
+
+import javax.persistence.Id;
+import javax.persistence.Transient;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reflection metadata of an entity class: its database, its @Id field and its properties.<br />
+ * <br />
+ * Computed once per class and shared by all ModelLoaders and by MultiJPAPlugin#bind.
+ * Dropped by MultiJPAPlugin when Play reloads the application classes.
+ */
+public class ModelMetadata {
+
+    private static ConcurrentMap<Class, ModelMetadata> metadata = new ConcurrentHashMap<Class, ModelMetadata>();
+
+    /**
+     * The same metadata, by entity class name, for the enhanced finders which only know the name.
+     */
+    private static ConcurrentMap<String, ModelMetadata> metadataByName = new ConcurrentHashMap<String, ModelMetadata>();
+
+    private final String databaseName;
+    private final Class<?> clazz;
+    private final Field keyField;
+    private final List<Model.Property> properties;
+    private final List<String> searchableProperties;
+    private final Set<String> sortableProperties;
+
+    private ModelMetadata(Class<? extends Model> clazz) {
+        this.clazz = clazz;
+        this.databaseName = ModelEnhancer.getDatabaseName(clazz);
+        this.keyField = findKeyField(clazz);
+
+        ModelLoader loader = new ModelLoader(clazz);
+        List<Model.Property> properties = new ArrayList<Model.Property>();
+        List<String> searchableProperties = new ArrayList<String>();
+        Set<String> sortableProperties = new HashSet<String>();
+        for (Field f : getPersistentFields(clazz)) {
+            Model.Property mp = loader.buildProperty(f);
+            if (mp != null) {
+                properties.add(mp);
+                if (mp.isSearchable) {
+                    searchableProperties.add(mp.name);
+                }
+                if (!mp.isMultiple) {
+                    sortableProperties.add(mp.name);
+                }
+            }
+        }
+        this.properties = Collections.unmodifiableList(properties);
+        this.searchableProperties = Collections.unmodifiableList(searchableProperties);
+        this.sortableProperties = Collections.unmodifiableSet(sortableProperties);
+    }
+
+    /**
+     * @param clazz an entity class
+     * @return the metadata of the class, computed at the first call
+     */
+    public static ModelMetadata get(Class<? extends Model> clazz) {
+        ModelMetadata result = metadata.get(clazz);
+
+        if (result == null) {
+            result = new ModelMetadata(clazz);
+            ModelMetadata previous = metadata.putIfAbsent(clazz, result);
+            if (previous != null) {
+                return previous;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param entityName the name of an entity class
+     * @return the metadata of the class, computed at the first call
+     */
+    @SuppressWarnings("unchecked")
+    public static ModelMetadata get(String entityName) {
+        ModelMetadata result = metadataByName.get(entityName);
+
+        if (result == null) {
+            try {
+                result = get((Class<? extends Model>) Play.classloader.loadClass(entityName));
+            } catch (ClassNotFoundException e) {
+                throw new UnexpectedException("Cannot find the entity " + entityName, e);
+            }
+            metadataByName.put(entityName, result);
+        }
+        return result;
+    }
+
+    /**
+     * Forget the metadata of all classes. Called when the application stops, before classes are reloaded.
+     */
+    public static void clear() {
+        metadata.clear();
+        metadataByName.clear();
+    }
+
+    private static Set<Field> getPersistentFields(Class<?> clazz) {
+        Set<Field> fields = new LinkedHashSet<Field>();
+        Class<?> tclazz = clazz;
+        while (!tclazz.equals(Object.class)) {
+            for (Field f : tclazz.getDeclaredFields()) {
+                int modifiers = f.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || f.isAnnotationPresent(Transient.class)) {
+                    continue;
+                }
+                fields.add(f);
+            }
+            tclazz = tclazz.getSuperclass();
+        }
+        return fields;
+    }
+
+    private static Field findKeyField(Class<?> clazz) {
+        Class c = clazz;
+        try {
+            while (!c.equals(Object.class)) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (field.isAnnotationPresent(Id.class)) {
+                        field.setAccessible(true);
+                        return field;
+                    }
+                }
+                c = c.getSuperclass();
+            }
+        } catch (Exception e) {
+            throw new UnexpectedException("Error while determining the object @Id for an object of type " + clazz);
+        }
+        return null;
+    }
+
+    public String getEntityName() {
+        return clazz.getName();
+    }
+
+    public String getDatabaseName() {
+        return databaseName;
+    }
+
+    /**
+     * @return the @Id field, already made accessible
+     */
+    public Field getKeyField() {
+        if (keyField == null) {
+            throw new UnexpectedException("Cannot get the object @Id for an object of type " + clazz);
+        }
+        return keyField;
+    }
+
+    public Object getKeyValue(Object entity) {
+        try {
+            return getKeyField().get(entity);
+        } catch (Exception ex) {
+            throw new UnexpectedException(ex);
+        }
+    }
+
+    /**
+     * @return the persistent properties, not to be modified
+     */
+    public List<Model.Property> getProperties() {
+        return properties;
+    }
+
+    /**
+     * @return names of the String properties
+     */
+    public List<String> getSearchableProperties() {
+        return searchableProperties;
+    }
+
+    /**
+     * @param name
+     * @return true if name is a single-valued property, which a query may order or filter by
+     */
+    public boolean isSortable(String name) {
+        return sortableProperties.contains(name);
+    }
+}
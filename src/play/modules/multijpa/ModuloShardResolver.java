@@ -0,0 +1,12 @@
+package play.modules.multijpa;
+
+/**
+ * Default ShardResolver: the value of numeric keys, or the hash code of other keys, modulo the number of shards.
+ */
+public class ModuloShardResolver implements ShardResolver {
+
+    public int resolve(Object key, int shards) {
+        long value = key instanceof Number ? ((Number) key).longValue() : key.hashCode();
+        return (int) (Math.abs(value % shards));
+    }
+}
@@ -1,6 +1,7 @@
 package play.modules.multijpa;
 
 import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -19,6 +20,7 @@ import play.db.jpa.GenericModel;
 import play.db.jpa.JPA;
 import play.db.jpa.JPABase;
 import play.db.jpa.JPAPlugin;
+import play.db.jpa.Transactional;
 import play.exceptions.UnexpectedException;
 
 /**
@@ -33,13 +35,14 @@ public class MultiJPAPlugin extends PlayPlugin {
     public Object bind(String name, Class clazz, java.lang.reflect.Type type, Annotation[] annotations, Map<String, String[]> params) {
         // TODO need to be more generic in order to work with JPASupport
         if (JPABase.class.isAssignableFrom(clazz)) {
-            String keyName = Model.Manager.factoryFor(clazz).keyName();
+            Model.Factory factory = Model.Manager.factoryFor(clazz);
+            String keyName = factory.keyName();
             String idKey = name + "." + keyName;
             if (params.containsKey(idKey) && params.get(idKey).length > 0 && params.get(idKey)[0] != null && params.get(idKey)[0].trim().length() > 0) {
                 String id = params.get(idKey)[0];
                 try {
                     Query query = DatastoreRegistry.getCurrentEntityManager(clazz).createQuery("from " + clazz.getName() + " o where o." + keyName + " = ?");
-                    query.setParameter(1, play.data.binding.Binder.directBind(name, annotations, id + "", Model.Manager.factoryFor(clazz).keyType()));
+                    query.setParameter(1, play.data.binding.Binder.directBind(name, annotations, id + "", factory.keyType()));
                     Object o = query.getSingleResult();
                     return GenericModel.edit(o, name, params, annotations);
                 } catch (NoResultException e) {
@@ -71,24 +74,54 @@ public class MultiJPAPlugin extends PlayPlugin {
         Logger.debug("MultiJPAPlugin#index=" + index);
         // Skip Play!'s JPAPlugin#onApplicationStart()
         JPA.entityManagerFactory = new DummyEntityManagerFactory();
-        // DatastoreConfiguration.createEntityManagerFactories();
+        if (DatastoreWarmup.isEnabled()) {
+            DatastoreWarmup.warmUp();
+        }
     }
 
     @Override
     public void onApplicationStop() {
-        // DatastoreRegistry.cleanAllEntityManagerFactories();
+        DatastoreExecutor.shutdown();
+        TransactionCoordinator.shutdown();
+        EntityManagerFactoryRegistry.closeAll();
+        Shards.shutdown();
+        DataSourceRegistry.closeAll();
+        DatastoreMetrics.clear();
+        // Classes are scanned again after a reload
+        EntityIndex.reset();
+        DatastoreRegistry.reset();
+        ModelMetadata.clear();
+        ModelEnhancer.clearDatabaseNames();
+        DirtyTracking.clear();
+        QueryCache.clear();
+        RelationChoices.clear();
+    }
+
+    @Override
+    public String getStatus() {
+        return DataSourceRegistry.getStatus() + DatastoreMetrics.getStatus() + QueryCache.getStatus() + BoundedCacheProvider.getStatus() + DatastoreWarmup.getStatus();
     }
 
     @Override
     public void beforeInvocation() {
         // Disables Play!'s JPAPlugin
         JPA.entityManagerFactory = null;
-        /*boolean readOnly = false;
-        Transactional tx = InvocationContext.current().getAnnotation(Transactional.class);
-        if (tx != null) {
-            readOnly = tx.readOnly();
+    }
+
+    @Override
+    public void beforeActionInvocation(Method actionMethod) {
+        ReadOnly readOnly = actionMethod.getAnnotation(ReadOnly.class);
+        if (readOnly == null) {
+            readOnly = actionMethod.getDeclaringClass().getAnnotation(ReadOnly.class);
+        }
+        if (readOnly != null) {
+            DatastoreRegistry.current().setReadOnly(readOnly.value());
+            return;
+        }
+        Transactional tx = actionMethod.getAnnotation(Transactional.class);
+        if (tx != null && tx.readOnly()) {
+            DatastoreRegistry.current().setReadOnly();
         }
-        startTx(readOnly);*/
     }
 
     @Override
@@ -105,6 +138,8 @@ public class MultiJPAPlugin extends PlayPlugin {
     public void invocationFinally() {
         // This does nothing if transactions are already ended.
         endTransactions(true);
+        DatastoreRegistry.current().clearReadOnly();
+        Shards.unbind();
     }
 
     private void endTransactions(boolean rollback) {
@@ -122,6 +157,8 @@ public class MultiJPAPlugin extends PlayPlugin {
     @Override
     public void afterFixtureLoad() {
         DatastoreRegistry.current().clearAllEntityManagers();
+        RelationChoices.clear();
+        EntityManagerFactoryRegistry.evictAll();
     }
 
     @Override
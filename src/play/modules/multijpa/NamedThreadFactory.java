@@ -0,0 +1,27 @@
+package play.modules.multijpa;
+
+import play.Play;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Daemon threads of the module, loading classes with the application classloader.
+ */
+class NamedThreadFactory implements ThreadFactory {
+
+    private String prefix;
+    private AtomicInteger count = new AtomicInteger();
+
+    NamedThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        // Entities and JDBC drivers are loaded by the application classloader
+        thread.setContextClassLoader(Play.classloader);
+        return thread;
+    }
+}
@@ -0,0 +1,130 @@
+package play.modules.multijpa;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of the JPQL strings built for a database, keyed by the shape of the query.<br />
+ * <br />
+ * ModelLoader and JPQL build the same query string for the same entity, search fields, where clause and ordering.
+ * Caching it avoids rebuilding the string, and as Hibernate keys its own query plan cache by the query string,
+ * the parsed plan is reused too.
+ * The size is <code>db.&lt;name&gt;.queryCache.size</code>, 256 by default. 0 disables the cache.
+ */
+public class QueryCache {
+
+    private static ConcurrentMap<String, QueryCache> caches = new ConcurrentHashMap<String, QueryCache>();
+
+    private final int size;
+    private final Map<String, String> queries;
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    private QueryCache(final int size) {
+        this.size = size;
+        this.queries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * @param databaseName
+     * @return the query cache of the database, not null
+     */
+    public static QueryCache get(String databaseName) {
+        QueryCache cache = caches.get(databaseName);
+
+        if (cache == null) {
+            cache = new QueryCache(getSize(databaseName));
+            QueryCache previous = caches.putIfAbsent(databaseName, cache);
+            if (previous != null) {
+                return previous;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @param databaseName
+     * @return the query cache of the database, or null if it was not used yet
+     */
+    public static QueryCache peek(String databaseName) {
+        return caches.get(databaseName);
+    }
+
+    static int getSize(String databaseName) {
+        return Integer.parseInt(new DataSourceConfiguration(databaseName).getOrElse("queryCache.size", "256"));
+    }
+
+    /**
+     * Forget all cached queries. Called when the application stops, as the entity classes may change.
+     */
+    public static void clear() {
+        caches.clear();
+    }
+
+    /**
+     * @param shape a key identifying everything the query depends on
+     * @return the cached query, or null
+     */
+    public String getQuery(String shape) {
+        if (size == 0) {
+            misses.incrementAndGet();
+            return null;
+        }
+        String query;
+        synchronized (queries) {
+            query = queries.get(shape);
+        }
+        (query != null ? hits : misses).incrementAndGet();
+        return query;
+    }
+
+    public void putQuery(String shape, String query) {
+        if (size == 0) {
+            return;
+        }
+        synchronized (queries) {
+            queries.put(shape, query);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getSize() {
+        synchronized (queries) {
+            return queries.size();
+        }
+    }
+
+    public static String getStatus() {
+        if (caches.isEmpty()) {
+            return "";
+        }
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        out.println("Query caches:");
+        out.println("~~~~~~~~~~~~~");
+        for (Map.Entry<String, QueryCache> entry : new TreeMap<String, QueryCache>(caches).entrySet()) {
+            QueryCache cache = entry.getValue();
+            out.println(entry.getKey() + ": size=" + cache.getSize() + "/" + cache.size + ", hits=" + cache.getHits() + ", misses=" + cache.getMisses());
+        }
+        return sw.toString();
+    }
+}
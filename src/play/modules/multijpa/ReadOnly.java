@@ -0,0 +1,24 @@
+package play.modules.multijpa;
+
+/**
+ * Runs the annotated action, or all actions of the annotated controller, in read-only transactions.<br />
+ * <br />
+ * Read-only transactions use read-only Hibernate sessions which are never flushed, on read-only JDBC connections,
+ * and are always rolled back.
+ * <pre>
+ * &#64;ReadOnly                  // every database
+ * &#64;ReadOnly({"mysql"})       // only the database named mysql
+ * </pre>
+ * <code>&#64;play.db.jpa.Transactional(readOnly = true)</code> is honored as well, for every database.
+ */
+@java.lang.annotation.Documented
+@java.lang.annotation.Target({java.lang.annotation.ElementType.TYPE, java.lang.annotation.ElementType.METHOD})
+@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)
+
+public @interface ReadOnly {
+
+    /**
+     * Names of the read-only databases, all databases when empty.
+     */
+    java.lang.String[] value() default {};
+}
@@ -0,0 +1,230 @@
+package play.modules.multijpa;
+
+import play.db.Model;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Choices of a relation property, as listed by CRUD forms.<br />
+ * <br />
+ * At most <code>db.&lt;name&gt;.choices.max</code> entities are listed (100 by default), ordered by key,
+ * from the database of the related entity, on a replica if it has any. search() lists those matching keywords instead,
+ * for forms loading choices as the user types.<br />
+ * With <code>db.&lt;name&gt;.choices.ttl</code> set to a number of seconds, lists are cached that long,
+ * and dropped as soon as a transaction saving or deleting entities of the type commits, including bulk deletes of JPQL.
+ * Cached entities are detached and shared by all threads: only their loaded properties may be used.<br />
+ * The choices of a sharded entity come from the shard of the key bound to the thread, or from all shards, one after another,
+ * when no key is bound.
+ */
+public class RelationChoices implements Model.Choices {
+
+    private static ConcurrentMap<String, CachedList> cache = new ConcurrentHashMap<String, CachedList>();
+
+    /**
+     * Generation of each cached list, incremented by each invalidation of the list, so that lists loaded meanwhile are not cached.
+     */
+    private static ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final Class<? extends Model> relationType;
+
+    @SuppressWarnings("unchecked")
+    public RelationChoices(Class<?> relationType) {
+        this.relationType = (Class<? extends Model>) relationType;
+    }
+
+    public List<Object> list() {
+        String databaseName = ModelEnhancer.getDatabaseName(relationType);
+        if (Shards.isSharded(databaseName) && Shards.current() == null) {
+            List<Object> choices = new ArrayList<Object>();
+            int max = Settings.of(databaseName).max;
+            for (String shardName : EntityIndex.current().getSharding(databaseName).shardNames) {
+                choices.addAll(list(shardName));
+                if (choices.size() >= max) {
+                    return choices.subList(0, max);
+                }
+            }
+            return choices;
+        }
+        return list(Shards.resolve(databaseName));
+    }
+
+    private List<Object> list(String databaseName) {
+        Settings settings = Settings.of(databaseName);
+
+        if (settings.ttl <= 0) {
+            return query(databaseName, null, settings.max);
+        }
+        String key = getCacheKey(databaseName, relationType);
+        CachedList cached = cache.get(key);
+        if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+            return cached.choices;
+        }
+        AtomicLong generation = getGeneration(key);
+        long loadedGeneration = generation.get();
+        List<Object> choices = Collections.unmodifiableList(queryDetached(databaseName, settings.max));
+        if (generation.get() == loadedGeneration) {
+            // Otherwise a transaction committed while loading, and the list may miss its changes
+            cache.put(key, new CachedList(choices, System.currentTimeMillis() + settings.ttl));
+        }
+        return choices;
+    }
+
+    /**
+     * @param keywords matched against the searchable properties of the entity, like ModelLoader.fetch() does
+     * @return at most <code>db.&lt;name&gt;.choices.max</code> matching entities, never cached
+     */
+    public List<Object> search(String keywords) {
+        String databaseName = ModelEnhancer.getDatabaseName(relationType);
+        if (Shards.isSharded(databaseName) && Shards.current() == null) {
+            List<Object> choices = new ArrayList<Object>();
+            int max = Settings.of(databaseName).max;
+            for (String shardName : EntityIndex.current().getSharding(databaseName).shardNames) {
+                choices.addAll(query(shardName, keywords, max - choices.size()));
+                if (choices.size() >= max) {
+                    break;
+                }
+            }
+            return choices;
+        }
+        databaseName = Shards.resolve(databaseName);
+        return query(databaseName, keywords, Settings.of(databaseName).max);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object> query(String databaseName, String keywords, int max) {
+        Datastore.Reader reader = DatastoreRegistry.current().get(databaseName).getReader();
+        return reader.list(createQuery(reader.entityManager, keywords, max));
+    }
+
+    /**
+     * Loads choices to be shared by all threads, in an EntityManager of their own so that they are fully detached.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Object> queryDetached(String databaseName, int max) {
+        ReplicaRoutingDataSource replicaRouting = DataSourceRegistry.getReplicaRouting(databaseName);
+        boolean readOnly = replicaRouting != null && replicaRouting.isReadOnly();
+        EntityManager entityManager = EntityManagerFactoryRegistry.get(databaseName).createEntityManager();
+        try {
+            if (replicaRouting != null) {
+                replicaRouting.setReadOnly(true);
+            }
+            return createQuery(entityManager, null, max).getResultList();
+        } finally {
+            if (replicaRouting != null) {
+                replicaRouting.setReadOnly(readOnly);
+            }
+            entityManager.close();
+        }
+    }
+
+    private Query createQuery(EntityManager entityManager, String keywords, int max) {
+        ModelMetadata metadata = ModelMetadata.get(relationType);
+        StringBuilder q = new StringBuilder("from ").append(relationType.getName());
+        boolean search = keywords != null && !keywords.equals("") && !metadata.getSearchableProperties().isEmpty();
+        if (search) {
+            q.append(" where ");
+            List<String> properties = metadata.getSearchableProperties();
+            for (int i = 0; i < properties.size(); i++) {
+                q.append(i == 0 ? "" : " or ").append("lower(").append(properties.get(i)).append(") like ?1");
+            }
+        }
+        q.append(" order by ").append(metadata.getKeyField().getName());
+
+        Query query = entityManager.createQuery(q.toString());
+        if (search) {
+            query.setParameter(1, "%" + keywords.toLowerCase() + "%");
+        }
+        query.setMaxResults(max);
+        return query;
+    }
+
+    private static String getCacheKey(String databaseName, Class<?> relationType) {
+        return databaseName + "/" + relationType.getName();
+    }
+
+    private static AtomicLong getGeneration(String key) {
+        AtomicLong generation = generations.get(key);
+        if (generation == null) {
+            generation = new AtomicLong();
+            AtomicLong previous = generations.putIfAbsent(key, generation);
+            if (previous != null) {
+                return previous;
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * Drops the cached choices listing some types or one of their superclasses.
+     * Called when a transaction which saved or deleted entities of these types committed, see Datastore.
+     */
+    public static void invalidate(String databaseName, Collection<Class<?>> types) {
+        if (generations.isEmpty()) {
+            // No list was ever cached or loaded to be cached
+            return;
+        }
+        for (Class<?> type : types) {
+            for (Class<?> c = type; c != null && !c.equals(Object.class); c = c.getSuperclass()) {
+                String key = getCacheKey(databaseName, c);
+                AtomicLong generation = generations.get(key);
+                if (generation != null) {
+                    generation.incrementAndGet();
+                    cache.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all cached choices. Called when the application stops and after fixtures are loaded.
+     */
+    public static void clear() {
+        for (AtomicLong generation : generations.values()) {
+            generation.incrementAndGet();
+        }
+        generations.clear();
+        cache.clear();
+        Settings.all.clear();
+    }
+
+    private static class Settings {
+
+        static ConcurrentMap<String, Settings> all = new ConcurrentHashMap<String, Settings>();
+
+        final int max;
+        final long ttl;
+
+        Settings(DataSourceConfiguration config) {
+            this.max = Integer.parseInt(config.getOrElse("choices.max", "100"));
+            this.ttl = Long.parseLong(config.getOrElse("choices.ttl", "0")) * 1000L;
+        }
+
+        static Settings of(String databaseName) {
+            Settings settings = all.get(databaseName);
+            if (settings == null) {
+                settings = new Settings(new DataSourceConfiguration(databaseName));
+                all.putIfAbsent(databaseName, settings);
+            }
+            return settings;
+        }
+    }
+
+    private static class CachedList {
+
+        final List<Object> choices;
+        final long expiresAt;
+
+        CachedList(List<Object> choices, long expiresAt) {
+            this.choices = choices;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package play.modules.multijpa;
+
+import com.mchange.v2.c3p0.PooledDataSource;
+import play.Logger;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DataSource of a database having read replicas.<br />
+ * <br />
+ * Connections are taken from the primary, unless the current thread reads on replicas (see setReadOnly()).
+ * A replica is chosen by <code>db.&lt;name&gt;.replicas.balancing</code>:
+ * <code>roundrobin</code> (default) or <code>leastbusy</code>, the replica with the fewest busy connections.<br />
+ * A replica which fails to give a connection is skipped for <code>db.&lt;name&gt;.replicas.retryAfter</code> milliseconds
+ * (30000 by default). When no replica is available, the primary is used.
+ */
+public class ReplicaRoutingDataSource implements DataSource {
+
+    private String databaseName;
+    private DataSource primary;
+    private Replica[] replicas;
+    private boolean leastBusy;
+    private long retryAfter;
+
+    private AtomicInteger next = new AtomicInteger();
+
+    private ThreadLocal<Boolean> readOnly = new ThreadLocal<Boolean>();
+
+    public ReplicaRoutingDataSource(String databaseName, DataSource primary, List<DataSource> replicas, DataSourceConfiguration config) {
+        this.databaseName = databaseName;
+        this.primary = primary;
+        this.replicas = new Replica[replicas.size()];
+        for (int i = 0; i < this.replicas.length; i++) {
+            this.replicas[i] = new Replica(replicas.get(i));
+        }
+        this.leastBusy = config.getOrElse("replicas.balancing", "roundrobin").equals("leastbusy");
+        this.retryAfter = Long.parseLong(config.getOrElse("replicas.retryAfter", "30000"));
+    }
+
+    /**
+     * Routes the connections of the current thread to the replicas, or back to the primary.
+     */
+    public void setReadOnly(boolean readOnly) {
+        if (readOnly) {
+            this.readOnly.set(Boolean.TRUE);
+        } else {
+            this.readOnly.remove();
+        }
+    }
+
+    public boolean isReadOnly() {
+        return readOnly.get() != null;
+    }
+
+    public Connection getConnection() throws SQLException {
+        if (!isReadOnly()) {
+            return primary.getConnection();
+        }
+        long now = System.currentTimeMillis();
+        int start = leastBusy ? leastBusyIndex(now) : (next.getAndIncrement() & Integer.MAX_VALUE) % replicas.length;
+        for (int i = 0; i < replicas.length; i++) {
+            Replica replica = replicas[(start + i) % replicas.length];
+            if (!replica.isAvailable(now)) {
+                continue;
+            }
+            try {
+                return replica.dataSource.getConnection();
+            } catch (SQLException e) {
+                replica.downUntil = now + retryAfter;
+                Logger.warn("A replica of `%s` is unavailable for %d ms: %s", databaseName, retryAfter, e.getMessage());
+            }
+        }
+        Logger.debug("No replica of `%s` available, reading on the primary", databaseName);
+        return primary.getConnection();
+    }
+
+    private int leastBusyIndex(long now) {
+        int best = 0;
+        int bestBusy = Integer.MAX_VALUE;
+        for (int i = 0; i < replicas.length; i++) {
+            if (!replicas[i].isAvailable(now)) {
+                continue;
+            }
+            int busy = replicas[i].busyConnections();
+            if (busy < bestBusy) {
+                best = i;
+                bestBusy = busy;
+            }
+        }
+        return best;
+    }
+
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Replicas use the credentials of the configuration");
+    }
+
+    public PrintWriter getLogWriter() throws SQLException {
+        return primary.getLogWriter();
+    }
+
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        primary.setLogWriter(out);
+    }
+
+    public void setLoginTimeout(int seconds) throws SQLException {
+        primary.setLoginTimeout(seconds);
+    }
+
+    public int getLoginTimeout() throws SQLException {
+        return primary.getLoginTimeout();
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return primary.unwrap(iface);
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || primary.isWrapperFor(iface);
+    }
+
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    private static class Replica {
+
+        DataSource dataSource;
+        volatile long downUntil = 0;
+
+        Replica(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        boolean isAvailable(long now) {
+            return downUntil <= now;
+        }
+
+        int busyConnections() {
+            if (!(dataSource instanceof PooledDataSource)) {
+                return 0;
+            }
+            try {
+                return ((PooledDataSource) dataSource).getNumBusyConnectionsDefaultUser();
+            } catch (SQLException e) {
+                return Integer.MAX_VALUE;
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package play.modules.multijpa;
+
+/**
+ * Chooses the shard of a shard key. Implementations must be thread-safe and have a public no-arg constructor.
+ */
+public interface ShardResolver {
+
+    /**
+     * @param key the shard key, not null
+     * @param shards number of shards
+     * @return an index between 0 and shards - 1
+     */
+    int resolve(Object key, int shards);
+}
@@ -0,0 +1,33 @@
+package play.modules.multijpa;
+
+/**
+ * Spreads the rows of an entity over several physical databases.<br />
+ * <br />
+ * The entity keeps its logical database name from &#64;Database, and the physical databases are listed in application.conf:
+ * <pre>
+ * &#64;Entity &#64;Database("comments") &#64;Sharded(key = "articleId")
+ * public class Comment extends Model { ... }
+ *
+ * db.comments.shards=comments0,comments1
+ * db.comments0.url=...
+ * db.comments1.url=...
+ * </pre>
+ * Bind the shard key of the current invocation with Shards.bind(), or use Shards.findAll() and Shards.count()
+ * to query all shards.
+ */
+@java.lang.annotation.Documented
+@java.lang.annotation.Target({java.lang.annotation.ElementType.TYPE})
+@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)
+
+public @interface Sharded {
+
+    /**
+     * Name of the field holding the shard key.
+     */
+    java.lang.String key();
+
+    /**
+     * Strategy choosing the shard of a key.
+     */
+    java.lang.Class<? extends ShardResolver> resolver() default ModuloShardResolver.class;
+}
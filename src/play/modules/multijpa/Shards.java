@@ -0,0 +1,243 @@
+package play.modules.multijpa;
+
+import play.exceptions.JPAException;
+import play.exceptions.UnexpectedException;
+
+import javax.persistence.EntityManager;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+/**
+ * Routing of sharded databases, see &#64;Sharded.<br />
+ * <br />
+ * The shard key bound to the current thread chooses the physical database of every EntityManager
+ * retrieved for a sharded database. The key is unbound at the end of each invocation.
+ * <pre>
+ * Shards.bind(article.id);
+ * List&lt;Comment&gt; comments = Comment.find("byArticleId", article.id).fetch();
+ * </pre>
+ * findAll() and count() query all shards in parallel, on the executor of each shard, see FanOut.
+ */
+public class Shards {
+
+    private static ThreadLocal<Object> currentKey = new ThreadLocal<Object>();
+
+    private static ConcurrentMap<Class, ShardResolver> resolvers = new ConcurrentHashMap<Class, ShardResolver>();
+
+    /**
+     * Shard key field of each &#64;Sharded class, already made accessible.
+     */
+    private static ConcurrentMap<Class, Field> keyFields = new ConcurrentHashMap<Class, Field>();
+
+    /**
+     * Binds the shard key of the current thread.
+     * @param key not null
+     */
+    public static void bind(Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException("The shard key must not be null");
+        }
+        currentKey.set(key);
+    }
+
+    public static void unbind() {
+        currentKey.remove();
+    }
+
+    /**
+     * @return the shard key bound to the current thread, or null
+     */
+    public static Object current() {
+        return currentKey.get();
+    }
+
+    public static boolean isSharded(String databaseName) {
+        return EntityIndex.current().getSharding(databaseName) != null;
+    }
+
+    /**
+     * @param databaseName a logical database name
+     * @return the physical database for the shard key bound to the current thread,
+     *         or databaseName itself if the database is not sharded
+     */
+    public static String resolve(String databaseName) {
+        EntityIndex.Sharding sharding = EntityIndex.current().getSharding(databaseName);
+        if (sharding == null) {
+            return databaseName;
+        }
+        Object key = currentKey.get();
+        if (key == null) {
+            throw new JPAException("The database `" + databaseName + "` is sharded, bind a shard key with Shards.bind() first");
+        }
+        return resolve(sharding, key);
+    }
+
+    /**
+     * @param databaseName a logical database name
+     * @param key the shard key, not null
+     * @return the physical database for the shard key, or databaseName itself if the database is not sharded
+     */
+    public static String resolve(String databaseName, Object key) {
+        EntityIndex.Sharding sharding = EntityIndex.current().getSharding(databaseName);
+        return sharding != null ? resolve(sharding, key) : databaseName;
+    }
+
+    private static String resolve(EntityIndex.Sharding sharding, Object key) {
+        int index = getResolver(sharding.resolver).resolve(key, sharding.shardNames.size());
+        return sharding.shardNames.get(index);
+    }
+
+    /**
+     * @param entity an instance of an entity class
+     * @return the physical database of the entity: the shard of its own key if it's &#64;Sharded,
+     *         the shard of the key bound to the current thread if its database is sharded otherwise
+     * @throws JPAException if the entity is not &#64;Sharded, its database is sharded and no shard key is bound
+     */
+    public static String shardOf(Object entity) {
+        Class<?> clazz = entity.getClass();
+        String databaseName = ModelEnhancer.getDatabaseName(clazz);
+        Sharded sharded = clazz.getAnnotation(Sharded.class);
+        if (sharded != null) {
+            return resolve(databaseName, keyOf(entity, sharded.key()));
+        }
+        EntityIndex.Sharding sharding = EntityIndex.current().getSharding(databaseName);
+        if (sharding == null) {
+            return databaseName;
+        }
+        Object key = currentKey.get();
+        if (key == null) {
+            throw new JPAException(clazz.getName() + " is not @Sharded but its database `" + databaseName
+                    + "` is sharded: annotate it with @Sharded, or bind a shard key with Shards.bind() first");
+        }
+        return resolve(sharding, key);
+    }
+
+    /**
+     * Checks that an entity written to a physical database belongs to it, whatever shard key is bound to the thread.
+     * Called by the interceptor of each EntityManagerFactory, see DatastoreConfiguration.
+     * @param databaseName the physical database the entity is written to
+     * @throws JPAException if the shard key of the entity maps to another shard
+     */
+    public static void checkShard(String databaseName, Object entity) {
+        Class<?> clazz = entity.getClass();
+        Sharded sharded = clazz.getAnnotation(Sharded.class);
+        if (sharded == null) {
+            return;
+        }
+        Object key = keyOf(entity, sharded.key());
+        if (key == null) {
+            // Not known yet, for example a key generated by the database
+            return;
+        }
+        String shard = resolve(ModelEnhancer.getDatabaseName(clazz), key);
+        if (!shard.equals(databaseName)) {
+            throw new JPAException("Cannot write " + clazz.getName() + " with the shard key " + key + " to `" + databaseName
+                    + "`, it belongs to `" + shard + "`: bind its key with Shards.bind(), or use DatastoreRegistry.saveAll()");
+        }
+    }
+
+    private static Object keyOf(Object entity, String keyName) {
+        try {
+            return getKeyField(entity.getClass(), keyName).get(entity);
+        } catch (IllegalAccessException e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    private static Field getKeyField(Class<?> clazz, String keyName) {
+        Field field = keyFields.get(clazz);
+        if (field != null) {
+            return field;
+        }
+        for (Class<?> c = clazz; !c.equals(Object.class); c = c.getSuperclass()) {
+            for (Field declared : c.getDeclaredFields()) {
+                if (declared.getName().equals(keyName)) {
+                    declared.setAccessible(true);
+                    keyFields.putIfAbsent(clazz, declared);
+                    return declared;
+                }
+            }
+        }
+        throw new UnexpectedException("Cannot find the shard key " + keyName + " of " + clazz);
+    }
+
+    private static ShardResolver getResolver(Class<? extends ShardResolver> resolverClass) {
+        ShardResolver resolver = resolvers.get(resolverClass);
+        if (resolver == null) {
+            try {
+                resolver = resolverClass.newInstance();
+            } catch (Exception e) {
+                throw new UnexpectedException("Cannot instantiate the shard resolver " + resolverClass.getName(), e);
+            }
+            resolvers.putIfAbsent(resolverClass, resolver);
+        }
+        return resolver;
+    }
+
+    /**
+     * Loads all entities of a sharded class from all shards, in parallel.
+     * The entities are detached, and listed shard after shard.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> List<T> findAll(Class<T> clazz) {
+        List<T> all = new ArrayList<T>();
+        for (Object result : scatter(clazz, "from " + clazz.getName())) {
+            all.addAll((List<T>) result);
+        }
+        return all;
+    }
+
+    /**
+     * Counts the entities of a sharded class on all shards, in parallel.
+     */
+    public static long count(Class<?> clazz) {
+        long count = 0;
+        for (Object result : scatter(clazz, "select count(e) from " + clazz.getName() + " e")) {
+            count += ((Number) ((List) result).get(0)).longValue();
+        }
+        return count;
+    }
+
+    /**
+     * Runs a query on every shard of the class, each in its own EntityManager.
+     * @return the result list of each shard
+     */
+    private static List<Object> scatter(Class<?> clazz, final String query) {
+        String databaseName = ModelEnhancer.getDatabaseName(clazz);
+        EntityIndex.Sharding sharding = EntityIndex.current().getSharding(databaseName);
+        List<String> shardNames = sharding != null ? sharding.shardNames : Collections.singletonList(databaseName);
+
+        FanOut fanOut = new FanOut();
+        List<Future<List>> futures = new ArrayList<Future<List>>();
+        for (String shardName : shardNames) {
+            futures.add(fanOut.add(shardName, new DatastoreExecutor.Work<List>() {
+                public List run(EntityManager em) {
+                    return em.createQuery(query).getResultList();
+                }
+            }));
+        }
+        fanOut.join();
+        List<Object> results = new ArrayList<Object>();
+        for (Future<List> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (Exception e) {
+                throw new UnexpectedException(e);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Forgets the shard resolvers and key fields. Called when the application stops.
+     */
+    public static void shutdown() {
+        resolvers.clear();
+        keyFields.clear();
+    }
+}
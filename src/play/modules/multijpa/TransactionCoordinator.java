@@ -0,0 +1,254 @@
+package play.modules.multijpa;
+
+import play.Logger;
+import play.Play;
+import play.exceptions.JPAException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Ends the transactions of an invocation which used several databases.<br />
+ * <br />
+ * Databases are handled in the order of their names, so that two invocations never commit in opposite orders.
+ * All transactions are flushed first: if one flush fails, all of them are rolled back and nothing is committed.
+ * Then:<br />
+ * - the transactions of XA databases are prepared, see XAConnectionDataSource: if one refuses, all are rolled back<br />
+ * - the other transactions are committed, one after another, or in parallel with <code>jpa.commit.parallel=true</code>
+ * on at most <code>jpa.commit.threads</code> threads (4 by default): if one fails, the transactions which did not commit yet
+ * are rolled back, the XA ones included<br />
+ * - the prepared XA transactions are committed<br />
+ * A flush is not a prepare: a database which is not XA may still fail to commit after others committed.
+ * The failure is logged with the databases which committed, and raised once all the others are ended.
+ * Without XA, this is an ordered commit, not a two-phase commit.<br />
+ * Read-only and rollback-only transactions are rolled back, as are transactions which wrote nothing, see Datastore.isWritten().
+ * A transaction which never reached its database costs nothing, see LazyConnectionDataSource.
+ */
+public class TransactionCoordinator {
+
+    private static volatile ExecutorService executor;
+
+    private static final Comparator<Datastore> BY_NAME = new Comparator<Datastore>() {
+        public int compare(Datastore a, Datastore b) {
+            return a.getDatabaseName().compareTo(b.getDatabaseName());
+        }
+    };
+
+    /**
+     * @param datastores Datastores whose transaction began
+     * @param rollback true to roll back all transactions
+     */
+    public static void endTransactions(List<Datastore> datastores, boolean rollback) {
+        List<Datastore> ordered = new ArrayList<Datastore>(datastores);
+        Collections.sort(ordered, BY_NAME);
+
+        if (rollback) {
+            rollbackAll(ordered, null);
+            return;
+        }
+
+        List<Datastore> prepared = new ArrayList<Datastore>();
+        for (Datastore datastore : ordered) {
+            try {
+                if (datastore.prepare()) {
+                    prepared.add(datastore);
+                } else {
+                    // Nothing to commit: rolled back, and recorded as committed if it only read
+                    datastore.endTransaction(false);
+                }
+            } catch (RuntimeException e) {
+                rollbackAll(ordered, datastore);
+                throw new JPAException("Cannot commit, flushing `" + datastore.getDatabaseName() + "` failed: nothing was committed", e);
+            }
+        }
+
+        List<Datastore> xa = new ArrayList<Datastore>();
+        List<Datastore> local = new ArrayList<Datastore>();
+        for (Datastore datastore : prepared) {
+            try {
+                if (datastore.prepareXA()) {
+                    xa.add(datastore);
+                } else {
+                    local.add(datastore);
+                }
+            } catch (RuntimeException e) {
+                rollbackAll(prepared, datastore);
+                throw new JPAException("Cannot commit, `" + datastore.getDatabaseName() + "` refused to prepare: nothing was committed", e);
+            }
+        }
+
+        JPAException failure = commit(local, new ArrayList<String>(), true);
+        if (failure != null) {
+            // The prepared XA transactions can still be rolled back
+            try {
+                rollbackAll(xa, null);
+            } catch (RuntimeException e) {
+                // Logged by rollbackAll()
+            }
+            throw failure;
+        }
+        List<String> committed = new ArrayList<String>();
+        for (Datastore datastore : local) {
+            committed.add(datastore.getDatabaseName());
+        }
+        failure = commit(xa, committed, false);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @param committed names of the databases committed so far, for the logs
+     * @param rollbackOnFailure true to roll back the transactions not committed yet once a commit failed,
+     *                          false to commit all of them anyway, as prepared XA transactions must be
+     * @return the first failure, once all transactions are ended, or null
+     */
+    private static JPAException commit(List<Datastore> datastores, List<String> committed, boolean rollbackOnFailure) {
+        if (datastores.size() > 1 && isParallel()) {
+            return commitInParallel(datastores, committed, rollbackOnFailure);
+        }
+        return commitInOrder(datastores, committed, rollbackOnFailure);
+    }
+
+    private static JPAException commitInOrder(List<Datastore> prepared, List<String> committed, boolean rollbackOnFailure) {
+        JPAException failure = null;
+        for (int i = 0; i < prepared.size(); i++) {
+            Datastore datastore = prepared.get(i);
+            try {
+                datastore.endTransaction(false);
+                committed.add(datastore.getDatabaseName());
+            } catch (RuntimeException e) {
+                failure = failed(failure, datastore, committed, e);
+                if (rollbackOnFailure) {
+                    rollbackAll(prepared.subList(i + 1, prepared.size()), datastore);
+                    break;
+                }
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * Commits on the threads of the pool. The transactions were flushed by Datastore.prepare(): Hibernate only
+     * sends the commits there, and no callback of the interceptor runs outside of the thread of the Datastores.
+     * With rollbackOnFailure, once a commit failed, the commits which did not start yet are skipped
+     * and their transactions are rolled back.
+     */
+    private static JPAException commitInParallel(List<Datastore> prepared, List<String> committed, final boolean rollbackOnFailure) {
+        final AtomicBoolean failed = new AtomicBoolean();
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (final Datastore datastore : prepared) {
+            // The Datastore is used by the committing thread only, until the future is done
+            futures.add(getExecutor().submit(new Callable<Boolean>() {
+                public Boolean call() {
+                    if (rollbackOnFailure && failed.get()) {
+                        return Boolean.FALSE;
+                    }
+                    try {
+                        datastore.commitPrepared();
+                        return Boolean.TRUE;
+                    } catch (RuntimeException e) {
+                        failed.set(true);
+                        throw e;
+                    }
+                }
+            }));
+        }
+        JPAException failure = null;
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            Datastore datastore = prepared.get(i);
+            while (true) {
+                try {
+                    if (futures.get(i).get()) {
+                        committed.add(datastore.getDatabaseName());
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    // A commit cannot be abandoned half way, wait for it
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    failure = failed(failure, datastore, committed, e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        // Back on the thread of the Datastores, records and closes the committed transactions, rolls back the others
+        for (Datastore datastore : prepared) {
+            try {
+                datastore.endTransaction(true);
+            } catch (RuntimeException e) {
+                Logger.error(e, "JPA -> Cannot end the transaction of `%s`", datastore.getDatabaseName());
+            }
+        }
+        return failure;
+    }
+
+    private static JPAException failed(JPAException failure, Datastore datastore, List<String> committed, Throwable e) {
+        Logger.error(e, "JPA -> Cannot commit `%s`, databases committed so far: %s", datastore.getDatabaseName(), committed);
+        return failure != null ? failure : new JPAException("Cannot commit `" + datastore.getDatabaseName() + "`", e);
+    }
+
+    /**
+     * Rolls back all transactions, even if some rollbacks fail.
+     * @param failed the Datastore which failed to flush, or null
+     */
+    private static void rollbackAll(List<Datastore> datastores, Datastore failed) {
+        RuntimeException failure = null;
+        for (Datastore datastore : datastores) {
+            try {
+                datastore.endTransaction(true);
+            } catch (RuntimeException e) {
+                if (datastore != failed) {
+                    Logger.error(e, "JPA -> Cannot roll back `%s`", datastore.getDatabaseName());
+                    failure = failure != null ? failure : e;
+                }
+            }
+        }
+        if (failure != null && failed == null) {
+            throw failure;
+        }
+    }
+
+    private static boolean isParallel() {
+        return Play.configuration.getProperty("jpa.commit.parallel", "false").equals("true");
+    }
+
+    private static ExecutorService getExecutor() {
+        ExecutorService result = executor;
+        if (result == null) {
+            synchronized (TransactionCoordinator.class) {
+                result = executor;
+                if (result == null) {
+                    int threads = Integer.parseInt(Play.configuration.getProperty("jpa.commit.threads", "4"));
+                    result = Executors.newFixedThreadPool(threads, new NamedThreadFactory("multijpa-commit"));
+                    executor = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stops the committing threads. Called when the application stops.
+     */
+    public static void shutdown() {
+        synchronized (TransactionCoordinator.class) {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package play.modules.multijpa;
+
+import play.Play;
+
+import javax.sql.DataSource;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DataSource whose Connections each run one branch of an XA transaction, for databases committed with a real
+ * prepare phase by TransactionCoordinator.<br />
+ * <br />
+ * Enabled with <code>db.&lt;name&gt;.xa=&lt;class of the XADataSource&gt;</code>, for example
+ * <code>org.hsqldb.jdbc.pool.JDBCXADataSource</code>. The XADataSource is configured with the URL, user and password
+ * of the database. Each Connection opens an XAConnection and starts a branch: commit() and rollback() end it
+ * in one phase, unless TransactionCoordinator prepared it first, see Branch.prepare().<br />
+ * XAConnections are not pooled, and the database has no replica. No recovery log is kept: a branch left prepared
+ * by a crash stays in doubt in the database until an administrator resolves it.
+ */
+public class XAConnectionDataSource implements DataSource {
+
+    private static final int FORMAT_ID = 0x4d4a5041;
+    private static final AtomicLong branches = new AtomicLong();
+    private static final byte[] NODE = String.valueOf(System.nanoTime()).getBytes();
+
+    private final XADataSource target;
+    private final String user;
+    private final String pass;
+
+    public XAConnectionDataSource(DataSourceConfiguration config) throws Exception {
+        Class<?> xaClass = Class.forName(config.getXADataSourceClass(), true, Play.classloader);
+        this.target = (XADataSource) xaClass.newInstance();
+        this.user = config.getUser();
+        this.pass = config.getPass();
+        setProperty(xaClass, config.getUrl(), "setUrl", "setURL");
+        setProperty(xaClass, user, "setUser");
+        setProperty(xaClass, pass, "setPassword");
+    }
+
+    private void setProperty(Class<?> xaClass, String value, String... setters) throws Exception {
+        if (value == null) {
+            return;
+        }
+        for (String setter : setters) {
+            try {
+                xaClass.getMethod(setter, String.class).invoke(target, value);
+                return;
+            } catch (NoSuchMethodException e) {
+                // Try the next spelling
+            }
+        }
+        throw new IllegalArgumentException(xaClass.getName() + " has none of " + Arrays.asList(setters));
+    }
+
+    /**
+     * @param connection a Connection of this DataSource, as borrowed by Hibernate
+     * @return its branch, or null if it is not a Connection of an XAConnectionDataSource
+     */
+    public static Branch branchOf(Connection connection) {
+        if (connection == null || !Proxy.isProxyClass(connection.getClass())) {
+            return null;
+        }
+        InvocationHandler handler = Proxy.getInvocationHandler(connection);
+        return handler instanceof Branch ? (Branch) handler : null;
+    }
+
+    public Connection getConnection() throws SQLException {
+        return getConnection(user, pass);
+    }
+
+    public Connection getConnection(String username, String password) throws SQLException {
+        XAConnection xaConnection = username != null ? target.getXAConnection(username, password) : target.getXAConnection();
+        Branch branch = new Branch(xaConnection);
+        try {
+            branch.start();
+        } catch (SQLException e) {
+            xaConnection.close();
+            throw e;
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class}, branch);
+    }
+
+    public PrintWriter getLogWriter() throws SQLException {
+        return target.getLogWriter();
+    }
+
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        target.setLogWriter(out);
+    }
+
+    public void setLoginTimeout(int seconds) throws SQLException {
+        target.setLoginTimeout(seconds);
+    }
+
+    public int getLoginTimeout() throws SQLException {
+        return target.getLoginTimeout();
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface);
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    /**
+     * A branch of an XA transaction, and the Connection running it.<br />
+     * The commit and rollback of the Connection finish the branch: in one phase while it is active,
+     * in the second phase once prepared. Auto-commit can not be changed, the branch is the transaction.
+     */
+    public static class Branch implements InvocationHandler {
+
+        /**
+         * ACTIVE until end(), IDLE if the prepare failed, then PREPARED until the second phase, ENDED once finished.
+         */
+        private static final int ACTIVE = 0, IDLE = 1, PREPARED = 2, ENDED = 3;
+
+        private final XAConnection xaConnection;
+        private final XAResource resource;
+        private final Connection connection;
+        private final Xid xid;
+        private int state = ACTIVE;
+
+        Branch(XAConnection xaConnection) throws SQLException {
+            this.xaConnection = xaConnection;
+            this.resource = xaConnection.getXAResource();
+            this.connection = xaConnection.getConnection();
+            this.xid = new BranchXid(branches.incrementAndGet());
+        }
+
+        void start() throws SQLException {
+            try {
+                resource.start(xid, XAResource.TMNOFLAGS);
+            } catch (XAException e) {
+                throw sqlException("start", e);
+            }
+        }
+
+        /**
+         * First phase: the database promises to commit the branch.
+         * @return true if the branch has to be committed, false if it wrote nothing and is already finished
+         * @throws SQLException if the database can not commit the branch, which must then be rolled back
+         */
+        public synchronized boolean prepare() throws SQLException {
+            if (state != ACTIVE) {
+                return state != ENDED;
+            }
+            try {
+                resource.end(xid, XAResource.TMSUCCESS);
+                state = IDLE;
+                if (resource.prepare(xid) == XAResource.XA_RDONLY) {
+                    state = ENDED;
+                    return false;
+                }
+                state = PREPARED;
+                return true;
+            } catch (XAException e) {
+                throw sqlException("prepare", e);
+            }
+        }
+
+        private synchronized void commit() throws SQLException {
+            try {
+                if (state == ACTIVE) {
+                    resource.end(xid, XAResource.TMSUCCESS);
+                    resource.commit(xid, true);
+                } else if (state == IDLE) {
+                    resource.commit(xid, true);
+                } else if (state == PREPARED) {
+                    resource.commit(xid, false);
+                }
+            } catch (XAException e) {
+                throw sqlException("commit", e);
+            } finally {
+                state = ENDED;
+            }
+        }
+
+        private synchronized void rollback() throws SQLException {
+            try {
+                if (state == ACTIVE) {
+                    resource.end(xid, XAResource.TMFAIL);
+                }
+                if (state != ENDED) {
+                    resource.rollback(xid);
+                }
+            } catch (XAException e) {
+                throw sqlException("roll back", e);
+            } finally {
+                state = ENDED;
+            }
+        }
+
+        private void close() throws SQLException {
+            try {
+                if (state != ENDED) {
+                    rollback();
+                }
+            } finally {
+                xaConnection.close();
+            }
+        }
+
+        private SQLException sqlException(String action, XAException e) {
+            SQLException exception = new SQLException("Cannot " + action + " the XA branch " + xid + " (error code " + e.errorCode + ")");
+            exception.initCause(e);
+            return exception;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "XA connection " + xid;
+            } else if (name.equals("commit")) {
+                commit();
+                return null;
+            } else if (name.equals("rollback") && (args == null || args.length == 0)) {
+                rollback();
+                return null;
+            } else if (name.equals("close")) {
+                close();
+                return null;
+            } else if (name.equals("setAutoCommit")) {
+                // The branch is the transaction
+                return null;
+            } else if (name.equals("getAutoCommit")) {
+                return false;
+            }
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+        }
+    }
+
+    private static class BranchXid implements Xid {
+
+        private final byte[] globalTransactionId;
+        private final byte[] branchQualifier;
+
+        BranchXid(long id) {
+            byte[] number = String.valueOf(id).getBytes();
+            globalTransactionId = new byte[NODE.length + 1 + number.length];
+            System.arraycopy(NODE, 0, globalTransactionId, 0, NODE.length);
+            globalTransactionId[NODE.length] = '-';
+            System.arraycopy(number, 0, globalTransactionId, NODE.length + 1, number.length);
+            branchQualifier = number;
+        }
+
+        public int getFormatId() {
+            return FORMAT_ID;
+        }
+
+        public byte[] getGlobalTransactionId() {
+            return globalTransactionId;
+        }
+
+        public byte[] getBranchQualifier() {
+            return branchQualifier;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Xid && ((Xid) o).getFormatId() == FORMAT_ID
+                    && Arrays.equals(((Xid) o).getGlobalTransactionId(), globalTransactionId)
+                    && Arrays.equals(((Xid) o).getBranchQualifier(), branchQualifier);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(globalTransactionId);
+        }
+
+        @Override
+        public String toString() {
+            return new String(globalTransactionId);
+        }
+    }
+}